@@ -0,0 +1,342 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+
+// Memory-mapped write-ahead journal of account operations, used by Ledger.
+//
+//   file    = magic "ACJL" (4 bytes) | version (u16) | zero padding to 16 bytes | record*
+//   record  = payload length (i32) | CRC32C of payload (i32) | payload
+//   payload = sequence (i64) | timestamp nanos (i64) | type (u8) | account (i32)
+//             | counterparty (i32) | cents (i64) | holder UTF-8 (rest, OPEN only)
+//
+// The file is mapped in fixed regions and a record never straddles two: a length of
+// -1 means "continue at the next region", a length of 0 marks the end. Appending is a
+// copy into the mapping; durability comes from forcing the written range.
+//
+// With PER_BATCH, awaitDurable() is a group commit: the first waiting thread forces
+// everything written so far, and threads whose records that covered return without a
+// sync of their own. INTERVAL forces from a background thread; NONE leaves it to the OS.
+//
+// Opening replays every intact record in order, optionally starting at a position and
+// sequence taken from a snapshot. The first record that is cut short,
+// fails its checksum or is out of sequence ends the journal: it and everything after
+// it is zeroed, so a later append can't be followed by stale bytes from before a crash.
+public class AccountJournal implements Closeable {
+
+    public interface Handler {
+        void apply(long sequence, long timestampNanos, byte type, int account, int counterparty, long cents,
+                String holder) throws IOException;
+    }
+
+    // Record types
+    static final byte OPEN = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAW = 3;
+    static final byte TRANSFER = 4;
+
+    static final int MAGIC = 0x41434a4c; // "ACJL"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int REGION_BYTES = 16 << 20;
+
+    private static final int PADDING = -1;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int MIN_PAYLOAD_BYTES = 8 + 8 + 1 + 4 + 4 + 8;
+    private static final int MAX_HOLDER_BYTES = 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final List<MappedByteBuffer> regions = new CopyOnWriteArrayList<>();
+    private final BatchedLineWriter.Durability durability;
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    // Guarded by this (appends)
+    private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_HEADER_BYTES + MIN_PAYLOAD_BYTES + MAX_HOLDER_BYTES);
+    private final CRC32C crc = new CRC32C();
+    private long nextSequence;
+    private volatile long writePosition;
+
+    // Guarded by syncLock
+    private final Object syncLock = new Object();
+    private long syncedPosition;
+
+    private long recoveredRecords;
+    private long truncatedBytes;
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    // Opens or creates the journal, passing every intact record to handler first
+    public AccountJournal(Path file, BatchedLineWriter.Durability durability, long interval, TimeUnit unit,
+            Handler handler) throws IOException {
+        this(file, durability, interval, unit, HEADER_BYTES, 0, handler);
+    }
+
+    // Replays only the records from startPosition on, the first of which must have
+    // startSequence; earlier records are covered by a snapshot
+    public AccountJournal(Path file, BatchedLineWriter.Durability durability, long interval, TimeUnit unit,
+            long startPosition, long startSequence, Handler handler) throws IOException {
+        if (startPosition < HEADER_BYTES) {
+            throw new IllegalArgumentException("startPosition is inside the header");
+        }
+        if (durability == BatchedLineWriter.Durability.INTERVAL && interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.file = file;
+        this.durability = durability;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            long regionCount = Math.max(1, (size + REGION_BYTES - 1) / REGION_BYTES);
+            for (int i = 0; i < regionCount; i++) {
+                region(i);
+            }
+            if (size == 0) {
+                regions.get(0).putInt(0, MAGIC).putShort(4, VERSION);
+                regions.get(0).force(0, HEADER_BYTES);
+                // A new file's directory entry must be durable before any record is
+                syncDirectory(file.toAbsolutePath().getParent());
+            } else {
+                checkHeader();
+            }
+            nextSequence = startSequence;
+            writePosition = replay(startPosition, handler);
+            syncedPosition = writePosition;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (durability == BatchedLineWriter.Durability.INTERVAL) {
+            long intervalNanos = unit.toNanos(interval);
+            flusher = new Thread(() -> flushLoop(intervalNanos), "journal-flusher-" + file.getFileName());
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    private MappedByteBuffer region(int index) throws IOException {
+        while (regions.size() <= index) {
+            // Mapping past the end grows the file; the new bytes read as zero
+            regions.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) regions.size() * REGION_BYTES,
+                    REGION_BYTES));
+        }
+        return regions.get(index);
+    }
+
+    private void checkHeader() throws IOException {
+        MappedByteBuffer header = regions.get(0);
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not an account journal: " + file);
+        }
+        if (header.getShort(4) > VERSION) {
+            throw new IOException("Unsupported account journal version " + header.getShort(4));
+        }
+    }
+
+    // Returns the position after the last intact record
+    private long replay(long position, Handler handler) throws IOException {
+        byte[] payload = new byte[MIN_PAYLOAD_BYTES + MAX_HOLDER_BYTES];
+        while (true) {
+            int offset = (int) (position % REGION_BYTES);
+            int index = (int) (position / REGION_BYTES);
+            if (offset + RECORD_HEADER_BYTES > REGION_BYTES) {
+                position = (long) (index + 1) * REGION_BYTES;
+                continue;
+            }
+            if (index >= regions.size()) {
+                break;
+            }
+            MappedByteBuffer region = regions.get(index);
+            int length = region.getInt(offset);
+            if (length == PADDING) {
+                position = (long) (index + 1) * REGION_BYTES;
+                continue;
+            }
+            if (length < MIN_PAYLOAD_BYTES || length > payload.length
+                    || offset + RECORD_HEADER_BYTES + length > REGION_BYTES) {
+                break;
+            }
+            region.get(offset + RECORD_HEADER_BYTES, payload, 0, length);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if ((int) crc.getValue() != region.getInt(offset + 4)) {
+                break;
+            }
+            ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+            long sequence = in.getLong();
+            if (sequence != nextSequence) {
+                break;
+            }
+            long timestamp = in.getLong();
+            byte type = in.get();
+            int account = in.getInt();
+            int counterparty = in.getInt();
+            long cents = in.getLong();
+            String holder = type == OPEN
+                    ? new String(payload, in.position(), in.remaining(), StandardCharsets.UTF_8) : null;
+            handler.apply(sequence, timestamp, type, account, counterparty, cents, holder);
+            nextSequence++;
+            recoveredRecords++;
+            position += RECORD_HEADER_BYTES + length;
+        }
+        truncatedBytes = clearFrom(position);
+        return position;
+    }
+
+    // Zeroes every non-zero byte from position to the end of the file
+    private long clearFrom(long position) throws IOException {
+        long cleared = 0;
+        for (int index = (int) (position / REGION_BYTES); index < regions.size(); index++) {
+            MappedByteBuffer region = regions.get(index);
+            int start = index == position / REGION_BYTES ? (int) (position % REGION_BYTES) : 0;
+            int dirtyFrom = -1;
+            int dirtyTo = -1;
+            for (int i = start; i < REGION_BYTES; i++) {
+                if (region.get(i) != 0) {
+                    region.put(i, (byte) 0);
+                    if (dirtyFrom < 0) {
+                        dirtyFrom = i;
+                    }
+                    dirtyTo = i + 1;
+                    cleared++;
+                }
+            }
+            if (dirtyFrom >= 0) {
+                region.force(dirtyFrom, dirtyTo - dirtyFrom);
+            }
+        }
+        return cleared;
+    }
+
+    // Appends a record and returns the position to pass to awaitDurable(). Callers that
+    // need the journal order to match the order operations took effect must serialize
+    // the operation and the append themselves, as Ledger does.
+    public synchronized long append(byte type, int account, int counterparty, long cents, String holder)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed: " + file);
+        }
+        byte[] name = holder == null ? new byte[0] : holder.getBytes(StandardCharsets.UTF_8);
+        if (name.length > MAX_HOLDER_BYTES) {
+            throw new IOException("Account holder name is too long (" + name.length + " bytes)");
+        }
+        int length = MIN_PAYLOAD_BYTES + name.length;
+        scratch.clear();
+        scratch.putInt(length).putInt(0)
+                .putLong(nextSequence).putLong(BankAccount.nowNanos()).put(type)
+                .putInt(account).putInt(counterparty).putLong(cents).put(name);
+        crc.reset();
+        crc.update(scratch.array(), RECORD_HEADER_BYTES, length);
+        scratch.putInt(4, (int) crc.getValue());
+
+        long position = writePosition;
+        int offset = (int) (position % REGION_BYTES);
+        if (offset + RECORD_HEADER_BYTES + length > REGION_BYTES) {
+            if (offset + 4 <= REGION_BYTES) {
+                region((int) (position / REGION_BYTES)).putInt(offset, PADDING);
+            }
+            position = (position / REGION_BYTES + 1) * REGION_BYTES;
+            offset = 0;
+        }
+        region((int) (position / REGION_BYTES)).put(offset, scratch.array(), 0, RECORD_HEADER_BYTES + length);
+        nextSequence++;
+        appends.increment();
+        writePosition = position + RECORD_HEADER_BYTES + length;
+        return writePosition;
+    }
+
+    // With PER_BATCH, blocks until everything up to position is on disk
+    public void awaitDurable(long position) throws IOException {
+        if (durability == BatchedLineWriter.Durability.PER_BATCH) {
+            sync(position);
+        }
+    }
+
+    // Blocks until everything up to position is on disk, whatever the policy
+    public void sync(long position) throws IOException {
+        synchronized (syncLock) {
+            if (syncedPosition >= position) {
+                return;
+            }
+            // Cover every record written so far, not just the caller's
+            long target = writePosition;
+            long from = syncedPosition;
+            for (int index = (int) (from / REGION_BYTES); (long) index * REGION_BYTES < target; index++) {
+                long regionStart = (long) index * REGION_BYTES;
+                int start = (int) (Math.max(from, regionStart) - regionStart);
+                int end = (int) (Math.min(target, regionStart + REGION_BYTES) - regionStart);
+                regions.get(index).force(start, end - start);
+            }
+            syncedPosition = target;
+            syncs.increment();
+        }
+    }
+
+    private void flushLoop(long intervalNanos) {
+        while (!closed) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+                sync(writePosition);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Error syncing " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public long getPosition() { return writePosition; }
+    public synchronized long getNextSequence() { return nextSequence; }
+    public long getRecoveredRecords() { return recoveredRecords; }
+    public long getTruncatedBytes() { return truncatedBytes; }
+    public long getAppendCount() { return appends.sum(); }
+    public long getSyncCount() { return syncs.sum(); }
+
+    // Syncs unless the policy is NONE
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            if (durability != BatchedLineWriter.Durability.NONE) {
+                sync(writePosition);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Best effort: not every platform can open a directory for syncing
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The file exists; it is just not yet known to survive a crash
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Load shedding for SimpleWebServer. Wraps the server executor so that at most
+// maxQueued requests wait for a thread, and wraps handlers so that requests which
+// waited past the deadline, or hit a busy endpoint, get a fast 503 + Retry-After
+// instead of occupying a worker for a client that has likely given up.
+public class AdmissionControl implements Executor {
+    private static final byte[] BUSY_BODY = "{\n    \"error\": \"Server busy, retry later\"\n}\n"
+            .getBytes(StandardCharsets.UTF_8);
+
+    // Set on the thread running an exchange so the handler wrapper knows how it was admitted
+    private static final ThreadLocal<Long> QUEUED_AT = new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> SHED = new ThreadLocal<>();
+
+    private final Executor delegate;
+    private final int maxQueued;
+    private final long deadlineNanos;
+    private final int retryAfterSeconds;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final LongAdder rejectedQueueFull = new LongAdder();
+    private final LongAdder rejectedExpired = new LongAdder();
+    private final LongAdder rejectedEndpointBusy = new LongAdder();
+
+    public AdmissionControl(Executor delegate, int maxQueued, long deadline, TimeUnit unit) {
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued must not be negative");
+        }
+        this.delegate = delegate;
+        this.maxQueued = maxQueued;
+        this.deadlineNanos = unit.toNanos(deadline);
+        this.retryAfterSeconds = (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(deadlineNanos));
+    }
+
+    @Override
+    public void execute(Runnable exchange) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            shed(exchange);
+            return;
+        }
+        long enqueuedAt = System.nanoTime();
+        try {
+            delegate.execute(() -> {
+                queued.decrementAndGet();
+                QUEUED_AT.set(enqueuedAt);
+                try {
+                    exchange.run();
+                } finally {
+                    QUEUED_AT.remove();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            shed(exchange);
+        }
+    }
+
+    // Runs the exchange on the calling (dispatcher) thread just far enough to answer 503
+    private void shed(Runnable exchange) {
+        SHED.set(Boolean.TRUE);
+        try {
+            exchange.run();
+        } finally {
+            SHED.remove();
+        }
+    }
+
+    // Wraps a handler with queue-deadline checks and, if maxConcurrent > 0, a cap on
+    // how many of its requests may run at once
+    public HttpHandler guard(HttpHandler handler, int maxConcurrent) {
+        Semaphore permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+        return exchange -> {
+            if (SHED.get() != null) {
+                rejectedQueueFull.increment();
+                reject(exchange);
+                return;
+            }
+            Long enqueuedAt = QUEUED_AT.get();
+            if (enqueuedAt != null && System.nanoTime() - enqueuedAt > deadlineNanos) {
+                rejectedExpired.increment();
+                reject(exchange);
+                return;
+            }
+            if (permits != null && !permits.tryAcquire()) {
+                rejectedEndpointBusy.increment();
+                reject(exchange);
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        };
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("Server", "Java-HTTP-Server/1.0");
+        exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        exchange.sendResponseHeaders(503, BUSY_BODY.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(BUSY_BODY);
+        }
+    }
+
+    // Statistics
+    public int getQueuedCount() { return queued.get(); }
+    public long getRejectedQueueFull() { return rejectedQueueFull.sum(); }
+    public long getRejectedExpired() { return rejectedExpired.sum(); }
+    public long getRejectedEndpointBusy() { return rejectedEndpointBusy.sum(); }
+}
@@ -0,0 +1,374 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+// Cache of per-file word frequencies. A result is reused while the file's size and
+// modification time are unchanged; with verifyContent, a file whose timestamp moved
+// but whose SHA-256 still matches is reused too (touched, checked out again, copied
+// with new times). Results are kept in an in-memory LRU and in a store directory with
+// one small file per source file, so they survive restarts.
+//
+// Like git's index, an entry recorded less than TIMESTAMP_SLACK after the file's
+// mtime is not trusted on metadata alone: the file may have changed again within the
+// same timestamp tick. Such entries are re-verified (by hash, or by re-analyzing).
+public class AnalysisCache {
+    private static final int STORE_MAGIC = 0x41434832; // "ACH2"
+    private static final long TIMESTAMP_SLACK_MILLIS = 2000;
+    private static final int READ_BUFFER_BYTES = 256 * 1024;
+
+    private static class Entry {
+        final long size;
+        final long modifiedMillis;
+        final long analyzedAtMillis;
+        final byte[] contentHash; // null unless verifyContent
+        final Map<String, Long> counts;
+
+        Entry(long size, long modifiedMillis, long analyzedAtMillis, byte[] contentHash, Map<String, Long> counts) {
+            this.size = size;
+            this.modifiedMillis = modifiedMillis;
+            this.analyzedAtMillis = analyzedAtMillis;
+            this.contentHash = contentHash;
+            this.counts = counts;
+        }
+
+        boolean sameMetadata(long size, long modifiedMillis) {
+            return this.size == size && this.modifiedMillis == modifiedMillis
+                    && analyzedAtMillis - modifiedMillis >= TIMESTAMP_SLACK_MILLIS;
+        }
+    }
+
+    private final Path storeDirectory;
+    private final boolean verifyContent;
+    private final Map<Path, Entry> memory;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder storeHits = new LongAdder();
+    private final LongAdder contentHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // storeDirectory may be null for a memory-only cache
+    public AnalysisCache(Path storeDirectory, int maxEntriesInMemory, boolean verifyContent) throws IOException {
+        if (maxEntriesInMemory <= 0) {
+            throw new IllegalArgumentException("maxEntriesInMemory must be positive");
+        }
+        this.storeDirectory = storeDirectory;
+        this.verifyContent = verifyContent;
+        this.memory = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+                if (size() > maxEntriesInMemory) {
+                    evictions.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+        if (storeDirectory != null) {
+            Files.createDirectories(storeDirectory);
+        }
+    }
+
+    // Word frequencies of the file (as FileProcessor.analyzeText), from cache when possible.
+    // The returned map is shared with the cache and cannot be modified.
+    public Map<String, Long> analyze(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(key, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().toMillis();
+
+        Entry cached;
+        synchronized (memory) {
+            cached = memory.get(key);
+        }
+        if (cached != null && cached.sameMetadata(size, modified)) {
+            memoryHits.increment();
+            return cached.counts;
+        }
+        if (cached == null) {
+            cached = readStored(key);
+            if (cached != null && cached.sameMetadata(size, modified)) {
+                storeHits.increment();
+                remember(key, cached);
+                return cached.counts;
+            }
+        }
+
+        Entry fresh;
+        if (verifyContent && cached != null && cached.contentHash != null && cached.size == size) {
+            // Metadata changed but the size didn't: hashing is cheaper than re-analyzing
+            byte[] hash = hashFile(key);
+            if (Arrays.equals(hash, cached.contentHash)) {
+                contentHits.increment();
+                fresh = new Entry(size, modified, System.currentTimeMillis(), hash, cached.counts);
+                remember(key, fresh);
+                store(key, fresh);
+                return fresh.counts;
+            }
+        }
+
+        misses.increment();
+        fresh = analyzeFile(key, size, modified);
+        remember(key, fresh);
+        store(key, fresh);
+        return fresh.counts;
+    }
+
+    public void invalidate(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (memory) {
+            memory.remove(key);
+        }
+        if (storeDirectory != null) {
+            Files.deleteIfExists(storeFile(key));
+        }
+    }
+
+    private void remember(Path key, Entry entry) {
+        synchronized (memory) {
+            memory.put(key, entry);
+        }
+    }
+
+    // One read pass feeds both the digest and the word counter
+    private Entry analyzeFile(Path file, long size, long modified) throws IOException {
+        long analyzedAt = System.currentTimeMillis();
+        MessageDigest digest = verifyContent ? newDigest() : null;
+        ByteWordCounter counter = new ByteWordCounter();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            int n;
+            while ((n = channel.read(buffer)) != -1) {
+                if (digest != null) {
+                    digest.update(buffer.array(), 0, n);
+                }
+                // accept() lowercases in place, so it must come after the digest
+                counter.accept(buffer.array(), 0, n);
+                buffer.clear();
+            }
+        }
+        Map<String, Long> counts = Collections.unmodifiableMap(counter.finish());
+        return new Entry(size, modified, analyzedAt, digest != null ? digest.digest() : null, counts);
+    }
+
+    private static byte[] hashFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is required by every Java platform", e);
+        }
+    }
+
+    // Store layout: <dir>/<first 2 hex of path hash>/<path hash>.cache, so no single
+    // directory grows to hundreds of thousands of entries
+    private Path storeFile(Path key) {
+        byte[] hash = newDigest().digest(key.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder name = new StringBuilder(40);
+        for (int i = 0; i < 16; i++) {
+            name.append(String.format("%02x", hash[i]));
+        }
+        return storeDirectory.resolve(name.substring(0, 2)).resolve(name + ".cache");
+    }
+
+    // Entry file: magic (i32) | path (UTF) | size (i64) | mtime (i64) | analyzed at (i64)
+    //             | hash length (u8) | hash | word count (i32) | (length (i32) | UTF-8 | count (i64))*
+    //             | CRC32C of everything before it (i32)
+    private Entry readStored(Path key) {
+        if (storeDirectory == null) {
+            return null;
+        }
+        Path file = storeFile(key);
+        try {
+            // The checksum is checked before anything is parsed, and every length is still
+            // bounded by the bytes left, so no entry can cause a huge allocation
+            byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < 4) {
+                throw new IOException("truncated");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(bytes, 0, bytes.length - 4);
+            if ((int) crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 4, 4).getInt()) {
+                throw new IOException("checksum mismatch");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 4));
+            if (in.readInt() != STORE_MAGIC || !in.readUTF().equals(key.toString())) {
+                return null;
+            }
+            long size = in.readLong();
+            long modified = in.readLong();
+            long analyzedAt = in.readLong();
+            byte[] hash = null;
+            int hashLength = in.readUnsignedByte();
+            if (hashLength > 0) {
+                hash = new byte[hashLength];
+                in.readFully(hash);
+            }
+            int wordCount = in.readInt();
+            if (wordCount < 0 || wordCount > in.available() / 12) {
+                throw new IOException("bad word count " + wordCount);
+            }
+            Map<String, Long> counts = new HashMap<>(wordCount * 4 / 3 + 1);
+            byte[] word = new byte[64];
+            for (int i = 0; i < wordCount; i++) {
+                int length = in.readInt();
+                if (length < 0 || length > in.available() - 8) {
+                    throw new IOException("bad word length " + length);
+                }
+                if (length > word.length) {
+                    word = new byte[length];
+                }
+                in.readFully(word, 0, length);
+                counts.put(new String(word, 0, length, StandardCharsets.UTF_8), in.readLong());
+            }
+            if (in.available() != 0) {
+                throw new IOException("trailing bytes");
+            }
+            return new Entry(size, modified, analyzedAt, hash, Collections.unmodifiableMap(counts));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // A damaged entry is just a miss; it will be rewritten
+            System.err.println("Ignoring unreadable cache entry " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void store(Path key, Entry entry) {
+        if (storeDirectory == null) {
+            return;
+        }
+        Path file = storeFile(key);
+        Path temp = null;
+        boolean moved = false;
+        try {
+            Files.createDirectories(file.getParent());
+            temp = Files.createTempFile(file.getParent(), "entry", ".tmp");
+            CRC32C crc = new CRC32C();
+            try (OutputStream stream = Files.newOutputStream(temp);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+                DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+                checked.writeInt(STORE_MAGIC);
+                checked.writeUTF(key.toString());
+                checked.writeLong(entry.size);
+                checked.writeLong(entry.modifiedMillis);
+                checked.writeLong(entry.analyzedAtMillis);
+                checked.writeByte(entry.contentHash == null ? 0 : entry.contentHash.length);
+                if (entry.contentHash != null) {
+                    checked.write(entry.contentHash);
+                }
+                checked.writeInt(entry.counts.size());
+                for (Map.Entry<String, Long> count : entry.counts.entrySet()) {
+                    byte[] word = count.getKey().getBytes(StandardCharsets.UTF_8);
+                    checked.writeInt(word.length);
+                    checked.write(word);
+                    checked.writeLong(count.getValue());
+                }
+                checked.flush();
+                out.writeInt((int) crc.getValue());
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+        } catch (IOException e) {
+            // The result is still correct, it just won't survive a restart
+            System.err.println("Cannot store cache entry for " + key + ": " + e.getMessage());
+        } finally {
+            if (temp != null && !moved) {
+                deleteQuietly(temp);
+            }
+        }
+    }
+
+    // Removes a partly written temporary file so failed stores don't pile up
+    private static void deleteQuietly(Path temp) {
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            System.err.println("Cannot delete " + temp + ": " + e.getMessage());
+        }
+    }
+
+    // Statistics
+    public long getMemoryHits() { return memoryHits.sum(); }
+    public long getStoreHits() { return storeHits.sum(); }
+    public long getContentHits() { return contentHits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public long getEvictions() { return evictions.sum(); }
+
+    public double getHitRatio() {
+        long hits = getMemoryHits() + getStoreHits() + getContentHits();
+        long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("memory hits=%d, store hits=%d, content hits=%d, misses=%d, evictions=%d (%.1f%% hit)",
+                getMemoryHits(), getStoreHits(), getContentHits(), getMisses(), getEvictions(), getHitRatio() * 100);
+    }
+
+    // Nightly-batch style run: java AnalysisCache <storeDir> <dir> [--verify]
+    // Run it twice; the second run only pays for files that changed in between.
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java AnalysisCache <storeDir> <dir> [--verify]");
+            return;
+        }
+        boolean verify = args.length > 2 && args[2].equals("--verify");
+        AnalysisCache cache = new AnalysisCache(Paths.get(args[0]), 10_000, verify);
+        PathMatcher textFiles = FileSystems.getDefault().getPathMatcher("glob:*.{txt,md,java,log,csv}");
+        int threads = Runtime.getRuntime().availableProcessors();
+        long start = System.nanoTime();
+        try (DirectoryScanner<Map<String, Long>> scanner = new DirectoryScanner<>(
+                file -> textFiles.matches(file.getFileName()), cache::analyze, threads, threads * 64)) {
+            Map<Path, Map<String, Long>> results = scanner.scan(Paths.get(args[1]));
+            System.out.printf("%d files in %d ms; %s%n", results.size(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), cache);
+        }
+    }
+}
@@ -1,36 +1,108 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Safe to share between threads. Every balance change holds the account's lock, and a
+// transfer holds both accounts' locks (taken in account id order, so transfers in
+// opposite directions can't deadlock), so it is applied to both balances and both
+// histories at once. Reading a balance takes no lock.
+//
+// Money is held as a whole number of cents, so arithmetic is exact; the double
+// methods convert (rounding to the nearest cent) at the boundary. History entries are
+// kept as numbers in a bounded TransactionHistory and only turned into text by
+// printStatement().
 public class BankAccount {
     // Static variable - shared across all instances
-    private static int accountCounter = 1000;
+    private static final AtomicInteger accountCounter = new AtomicInteger(1000);
+    // Orders transfers between distinct accounts that share an id (from separate ledgers)
+    private static final Object TIE_LOCK = new Object();
+
+    // Transaction types
+    static final byte CREATED = 0;
+    static final byte INITIAL_DEPOSIT = 1;
+    static final byte DEPOSIT = 2;
+    static final byte WITHDRAWAL = 3;
+    static final byte TRANSFER_OUT = 4;
+    static final byte TRANSFER_IN = 5;
+
+    // Wall-clock nanoseconds without allocating: a fixed epoch offset plus nanoTime
+    private static final long EPOCH_NANOS_AT_START = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    private static final long NANO_TIME_AT_START = System.nanoTime();
+
+    static final int DEFAULT_HISTORY_CAPACITY = 1024;
     
     // Instance variables
+    private final int accountId;
     private final String accountNumber;
     private String accountHolder;
-    private double balance;
-    private List<String> transactionHistory;
+    // Guards balance changes and the history entries that record them
+    private final Object lock = new Object();
+    private volatile long balanceCents;
+    // Counterparty is the other account's id for transfers, else 0
+    private final TransactionHistory transactionHistory;
     
     // Constructors
     public BankAccount(String accountHolder) {
-        this.accountNumber = "ACC" + (++accountCounter);
+        this(accountHolder, new TransactionHistory(DEFAULT_HISTORY_CAPACITY));
+    }
+
+    private BankAccount(String accountHolder, TransactionHistory history) {
+        this(accountCounter.incrementAndGet(), accountHolder, history);
+    }
+
+    private BankAccount(int accountId, String accountHolder, TransactionHistory history) {
+        this.accountId = accountId;
+        this.accountNumber = accountNumber(accountId);
         this.accountHolder = accountHolder;
-        this.balance = 0.0;
-        this.transactionHistory = new ArrayList<>();
-        addTransaction("Account created with initial balance: $" + balance);
+        this.transactionHistory = history;
+        addTransaction(CREATED, 0, 0, 0);
     }
     
     public BankAccount(String accountHolder, double initialBalance) {
-        this(accountHolder);
-        this.balance = initialBalance;
-        addTransaction("Initial deposit: $" + initialBalance);
+        this(accountHolder, initialBalance, new TransactionHistory(DEFAULT_HISTORY_CAPACITY));
+    }
+
+    // With a caller-chosen history, e.g. a larger one or one that spills to disk
+    public BankAccount(String accountHolder, double initialBalance, TransactionHistory history) {
+        this(accountHolder, history);
+        long cents = initialBalance == 0 ? 0 : toCents(initialBalance);
+        if (cents < 0) {
+            throw new IllegalArgumentException("Invalid initial balance: " + initialBalance);
+        }
+        balanceCents = cents;
+        addTransaction(INITIAL_DEPOSIT, cents, cents, 0);
+    }
+
+    // For Ledger, which assigns ids itself (see nextAccountId) and reuses them on replay
+    BankAccount(int accountId, String accountHolder, long initialCents) {
+        this(accountId, accountHolder, new TransactionHistory(DEFAULT_HISTORY_CAPACITY));
+        if (initialCents < 0) {
+            throw new IllegalArgumentException("Invalid initial balance: " + initialCents + " cents");
+        }
+        reserveAccountIds(accountId);
+        balanceCents = initialCents;
+        addTransaction(INITIAL_DEPOSIT, initialCents, initialCents, 0);
+    }
+
+    static int nextAccountId() {
+        return accountCounter.incrementAndGet();
+    }
+
+    static int lastAccountId() {
+        return accountCounter.get();
+    }
+
+    // Makes sure ids up to lastId are never handed out again
+    static void reserveAccountIds(int lastId) {
+        accountCounter.accumulateAndGet(lastId, Math::max);
     }
     
     // Methods
     public void deposit(double amount) {
-        if (amount > 0) {
-            balance += amount;
-            addTransaction("Deposit: +$" + amount);
+        if (tryDeposit(amount)) {
             System.out.println("Successfully deposited $" + amount);
         } else {
             System.out.println("Invalid deposit amount");
@@ -38,9 +110,7 @@ public class BankAccount {
     }
     
     public void withdraw(double amount) {
-        if (amount > 0 && amount <= balance) {
-            balance -= amount;
-            addTransaction("Withdrawal: -$" + amount);
+        if (tryWithdraw(amount)) {
             System.out.println("Successfully withdrew $" + amount);
         } else {
             System.out.println("Insufficient funds or invalid amount");
@@ -48,22 +118,149 @@ public class BankAccount {
     }
     
     public void transfer(BankAccount recipient, double amount) {
-        if (amount > 0 && amount <= balance) {
-            this.withdraw(amount);
-            recipient.deposit(amount);
-            addTransaction("Transfer to " + recipient.accountNumber + ": -$" + amount);
+        if (tryTransfer(recipient, amount)) {
             System.out.println("Transfer successful to " + recipient.accountHolder);
         } else {
             System.out.println("Transfer failed: Insufficient funds");
         }
     }
+
+    // The same operations without console output; they report success instead
+    public boolean tryDeposit(double amount) {
+        return depositCents(toCents(amount));
+    }
+
+    public boolean tryWithdraw(double amount) {
+        return withdrawCents(toCents(amount));
+    }
+
+    public boolean tryTransfer(BankAccount recipient, double amount) {
+        return transferCents(recipient, toCents(amount));
+    }
+
+    public boolean depositCents(long cents) {
+        if (cents <= 0) {
+            return false;
+        }
+        synchronized (lock) {
+            if (cents > Long.MAX_VALUE - balanceCents) {
+                return false;
+            }
+            balanceCents += cents;
+            addTransaction(DEPOSIT, cents, balanceCents, 0);
+            return true;
+        }
+    }
+
+    public boolean withdrawCents(long cents) {
+        if (cents <= 0) {
+            return false;
+        }
+        synchronized (lock) {
+            if (cents > balanceCents) {
+                return false;
+            }
+            balanceCents -= cents;
+            addTransaction(WITHDRAWAL, cents, balanceCents, 0);
+            return true;
+        }
+    }
+
+    // Both balances change under both locks, so no other operation on either account
+    // ever sees the money in neither account or in both
+    public boolean transferCents(BankAccount recipient, long cents) {
+        if (recipient == this || cents <= 0) {
+            return false;
+        }
+        int order = Integer.compare(accountId, recipient.accountId);
+        if (order == 0) {
+            order = Integer.compare(System.identityHashCode(this), System.identityHashCode(recipient));
+        }
+        if (order == 0) {
+            synchronized (TIE_LOCK) {
+                synchronized (lock) {
+                    synchronized (recipient.lock) {
+                        return transferLocked(recipient, cents);
+                    }
+                }
+            }
+        }
+        Object first = order < 0 ? lock : recipient.lock;
+        Object second = order < 0 ? recipient.lock : lock;
+        synchronized (first) {
+            synchronized (second) {
+                return transferLocked(recipient, cents);
+            }
+        }
+    }
+
+    // Caller holds both accounts' locks
+    private boolean transferLocked(BankAccount recipient, long cents) {
+        if (cents > balanceCents || cents > Long.MAX_VALUE - recipient.balanceCents) {
+            return false;
+        }
+        balanceCents -= cents;
+        recipient.balanceCents += cents;
+        addTransaction(TRANSFER_OUT, cents, balanceCents, recipient.accountId);
+        recipient.addTransaction(TRANSFER_IN, cents, recipient.balanceCents, accountId);
+        return true;
+    }
+
+    // Rounds to the nearest cent; -1 for amounts that are not a positive number of cents
+    static long toCents(double amount) {
+        double cents = Math.rint(amount * 100);
+        if (!(cents >= 1 && cents < Long.MAX_VALUE)) {
+            return -1;
+        }
+        return (long) cents;
+    }
+
+    static String formatCents(long cents) {
+        return String.format("%s%d.%02d", cents < 0 ? "-" : "", Math.abs(cents / 100), Math.abs(cents % 100));
+    }
+
+    static String accountNumber(int accountId) {
+        return "ACC" + accountId;
+    }
     
-    private void addTransaction(String transaction) {
-        String timestamp = java.time.LocalDateTime.now().toString();
-        transactionHistory.add(timestamp + " - " + transaction + " | Balance: $" + balance);
+    private void addTransaction(byte type, long amountCents, long balanceAfter, int counterparty) {
+        transactionHistory.add(nowNanos(), type, amountCents, balanceAfter, counterparty);
+    }
+
+    static long nowNanos() {
+        return EPOCH_NANOS_AT_START + (System.nanoTime() - NANO_TIME_AT_START);
+    }
+
+    static long toEpochNanos(LocalDateTime time) {
+        Instant instant = time.atZone(ZoneId.systemDefault()).toInstant();
+        return TimeUnit.SECONDS.toNanos(instant.getEpochSecond()) + instant.getNano();
+    }
+
+    static String describe(byte type, long amountCents, int counterparty) {
+        String amount = "$" + formatCents(amountCents);
+        switch (type) {
+            case CREATED:
+                return "Account created with initial balance: " + amount;
+            case INITIAL_DEPOSIT:
+                return "Initial deposit: " + amount;
+            case DEPOSIT:
+                return "Deposit: +" + amount;
+            case WITHDRAWAL:
+                return "Withdrawal: -" + amount;
+            case TRANSFER_OUT:
+                return "Transfer to " + accountNumber(counterparty) + ": -" + amount;
+            case TRANSFER_IN:
+                return "Transfer from " + accountNumber(counterparty) + ": +" + amount;
+            default:
+                return "Unknown transaction type " + type;
+        }
     }
     
     // Getters
+    public int getAccountId() {
+        return accountId;
+    }
+
     public String getAccountNumber() {
         return accountNumber;
     }
@@ -73,30 +270,60 @@ public class BankAccount {
     }
     
     public double getBalance() {
-        return balance;
+        return balanceCents / 100.0;
+    }
+
+    public long getBalanceCents() {
+        return balanceCents;
+    }
+
+    public long getTransactionCount() {
+        return transactionHistory.size();
+    }
+
+    public TransactionHistory getTransactionHistory() {
+        return transactionHistory;
     }
     
     public void printStatement() {
+        printStatement(LocalDateTime.MIN, LocalDateTime.MAX);
+    }
+
+    // Only the transactions with from <= time < to
+    public void printStatement(LocalDateTime from, LocalDateTime to) {
         System.out.println("\n=== Bank Statement ===");
         System.out.println("Account: " + accountNumber);
         System.out.println("Holder: " + accountHolder);
-        System.out.println("Current Balance: $" + balance);
+        System.out.println("Current Balance: $" + formatCents(getBalanceCents()));
         System.out.println("\nTransaction History:");
-        for (String transaction : transactionHistory) {
-            System.out.println("  " + transaction);
+        long fromNanos = from.equals(LocalDateTime.MIN) ? Long.MIN_VALUE : toEpochNanos(from);
+        long toNanos = to.equals(LocalDateTime.MAX) ? Long.MAX_VALUE : toEpochNanos(to);
+        ZoneId zone = ZoneId.systemDefault();
+        try {
+            long first = transactionHistory.indexOf(fromNanos);
+            if (first == transactionHistory.getFirstAvailable() && first > 0) {
+                System.out.println("  (" + first + " older transactions are no longer kept)");
+            }
+            transactionHistory.range(fromNanos, toNanos, (sequence, timestamp, type, amount, balance, counterparty) -> {
+                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(0, timestamp), zone);
+                System.out.println("  " + time + " - " + describe(type, amount, counterparty)
+                        + " | Balance: $" + formatCents(balance));
+            });
+        } catch (IOException e) {
+            System.err.println("Error reading transaction history: " + e.getMessage());
         }
     }
     
     // Static method
     public static int getTotalAccounts() {
-        return accountCounter - 1000;
+        return accountCounter.get() - 1000;
     }
     
     // Override toString method
     @Override
     public String toString() {
-        return String.format("BankAccount[%s: %s - $%.2f]", 
-                           accountNumber, accountHolder, balance);
+        return String.format("BankAccount[%s: %s - $%s]", 
+                           accountNumber, accountHolder, formatCents(getBalanceCents()));
     }
     
     // Main method for testing
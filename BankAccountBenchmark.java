@@ -0,0 +1,222 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Concurrency check and throughput benchmark for BankAccount:
+//   java BankAccountBenchmark [accounts] [opsPerThread]
+//
+// The stress run has many threads moving money between a few accounts (so they
+// contend) and checks afterwards that no money was created or lost, no balance went
+// negative and every account got a unique number. The benchmark then reports
+// operations per second for a range of thread counts.
+//
+// Finally it compares journaled transfers through Ledger, one call per transfer, with
+// the same transfers submitted to a LedgerEngine, reporting throughput and latency
+// percentiles for each durability policy.
+public class BankAccountBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+    private static final long INITIAL_CENTS = 100_000;
+    private static final int PRODUCERS = 8;
+    private static final int WINDOW = 64;
+
+    public static void main(String[] args) throws Exception {
+        int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        boolean ok = stressTest(accounts, 8, perThread);
+        System.out.println();
+        System.out.println("Throughput (" + accounts + " accounts, " + perThread + " operations per thread)");
+        for (int threads : THREAD_COUNTS) {
+            BankAccount[] bank = openAccounts(accounts);
+            long nanos = run(bank, threads, perThread, new AtomicLong(), new AtomicLong());
+            System.out.printf("  %2d threads  %,12.0f ops/s%n", threads, (double) threads * perThread / nanos * 1e9);
+        }
+
+        int transfers = perThread / 4;
+        System.out.println();
+        System.out.println("Journaled transfers (" + PRODUCERS + " threads, " + accounts + " accounts)");
+        for (BatchedLineWriter.Durability durability : new BatchedLineWriter.Durability[] {
+                BatchedLineWriter.Durability.NONE, BatchedLineWriter.Durability.PER_BATCH}) {
+            // One fsync per caller group is slow; keep the direct run short
+            int direct = durability == BatchedLineWriter.Durability.PER_BATCH ? transfers / 10 : transfers;
+            ok &= benchmarkLedger(durability, accounts, direct, false);
+            ok &= benchmarkLedger(durability, accounts, transfers, true);
+        }
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean stressTest(int accounts, int threads, int perThread) throws InterruptedException {
+        System.out.println("Stress test: " + threads + " threads, " + accounts + " accounts, "
+                + perThread + " operations per thread");
+        boolean ok = true;
+
+        // Account numbers handed out concurrently must all be different
+        Set<String> numbers = ConcurrentHashMap.newKeySet();
+        int before = BankAccount.getTotalAccounts();
+        runThreads(threads, () -> {
+            for (int i = 0; i < 1_000; i++) {
+                numbers.add(new BankAccount("stress").getAccountNumber());
+            }
+        });
+        ok &= check("unique account numbers", numbers.size() == threads * 1_000
+                && BankAccount.getTotalAccounts() - before == threads * 1_000);
+
+        BankAccount[] bank = openAccounts(accounts);
+        AtomicLong deposited = new AtomicLong();
+        AtomicLong withdrawn = new AtomicLong();
+        long nanos = run(bank, threads, perThread, deposited, withdrawn);
+
+        long expected = accounts * INITIAL_CENTS + deposited.get() - withdrawn.get();
+        long total = 0;
+        boolean negative = false;
+        for (BankAccount account : bank) {
+            total += account.getBalanceCents();
+            negative |= account.getBalanceCents() < 0;
+        }
+        ok &= check("money conserved (expected " + expected + " cents, found " + total + ")", total == expected);
+        ok &= check("no negative balance", !negative);
+        System.out.printf("  %d operations in %d ms%n", (long) threads * perThread, nanos / 1_000_000);
+        return ok;
+    }
+
+    // Transfers only, so the total must not change
+    private static boolean benchmarkLedger(BatchedLineWriter.Durability durability, int accounts, int perThread,
+            boolean useEngine) throws Exception {
+        Path directory = Files.createTempDirectory("ledger");
+        try (Ledger ledger = new Ledger(directory, durability)) {
+            BankAccount[] bank = new BankAccount[accounts];
+            for (int i = 0; i < accounts; i++) {
+                bank[i] = ledger.openAccount("Holder " + i, INITIAL_CENTS);
+            }
+            LatencyHistogram latency;
+            long batches = 0;
+            long start = System.nanoTime();
+            if (useEngine) {
+                try (LedgerEngine engine = new LedgerEngine(ledger)) {
+                    runThreads(PRODUCERS, () -> submitTransfers(engine, bank, perThread));
+                    latency = engine.getLatency();
+                    batches = engine.getBatchCount();
+                }
+            } else {
+                latency = new LatencyHistogram();
+                runThreads(PRODUCERS, () -> callTransfers(ledger, bank, perThread, latency));
+            }
+            long nanos = System.nanoTime() - start;
+            double perSecond = (double) PRODUCERS * perThread / nanos * 1e9;
+            System.out.printf("  %-9s %-7s %,11.0f transfers/s (%,6.1f M/min)  p50=%.3fms p99=%.3fms p99.9=%.3fms%s%n",
+                    durability, useEngine ? "engine" : "direct", perSecond, perSecond * 60 / 1e6,
+                    latency.getPercentileNanos(50) / 1e6, latency.getPercentileNanos(99) / 1e6,
+                    latency.getPercentileNanos(99.9) / 1e6,
+                    useEngine ? String.format("  %.0f per batch", (double) latency.getCount() / batches) : "");
+            return check("money conserved", ledger.getTotalCents() == accounts * INITIAL_CENTS);
+        } finally {
+            Ledger.deleteDirectory(directory);
+        }
+    }
+
+    private static void callTransfers(Ledger ledger, BankAccount[] bank, int count, LatencyHistogram latency) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                ledger.transfer(bank[random.nextInt(bank.length)], bank[random.nextInt(bank.length)],
+                        1 + random.nextInt(10_000));
+                latency.record(System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            System.err.println("Transfer failed: " + e.getMessage());
+        }
+    }
+
+    // Keeps up to WINDOW transfers outstanding per producer
+    private static void submitTransfers(LedgerEngine engine, BankAccount[] bank, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Boolean>[] window = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[WINDOW];
+        for (int i = 0; i < count; i++) {
+            int slot = i % WINDOW;
+            if (window[slot] != null) {
+                window[slot].join();
+            }
+            window[slot] = engine.submit(bank[random.nextInt(bank.length)], bank[random.nextInt(bank.length)],
+                    1 + random.nextInt(10_000));
+        }
+        for (CompletableFuture<Boolean> pending : window) {
+            if (pending != null) {
+                pending.join();
+            }
+        }
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println("  " + (passed ? "OK    " : "FAILED") + " " + what);
+        return passed;
+    }
+
+    private static BankAccount[] openAccounts(int count) {
+        BankAccount[] bank = new BankAccount[count];
+        for (int i = 0; i < count; i++) {
+            bank[i] = new BankAccount("Holder " + i, INITIAL_CENTS / 100.0);
+        }
+        return bank;
+    }
+
+    // Mostly transfers, some deposits and withdrawals; returns the elapsed nanoseconds
+    private static long run(BankAccount[] bank, int threads, int perThread, AtomicLong deposited,
+            AtomicLong withdrawn) throws InterruptedException {
+        long start = System.nanoTime();
+        runThreads(threads, () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long in = 0;
+            long out = 0;
+            for (int i = 0; i < perThread; i++) {
+                BankAccount from = bank[random.nextInt(bank.length)];
+                long cents = 1 + random.nextInt(10_000);
+                int choice = random.nextInt(10);
+                if (choice == 0) {
+                    if (from.depositCents(cents)) {
+                        in += cents;
+                    }
+                } else if (choice == 1) {
+                    if (from.withdrawCents(cents)) {
+                        out += cents;
+                    }
+                } else {
+                    from.transferCents(bank[random.nextInt(bank.length)], cents);
+                }
+            }
+            deposited.addAndGet(in);
+            withdrawn.addAndGet(out);
+        });
+        return System.nanoTime() - start;
+    }
+
+    // Starts the threads together and waits for all of them
+    private static void runThreads(int threads, Runnable task) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+}
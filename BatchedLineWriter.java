@@ -0,0 +1,372 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Long-lived, append-only line writer. Any number of threads call append(); a single
+// writer thread takes everything queued since its last pass (group commit), encodes it
+// into a set of large direct buffers, writes them with one gathering write and then
+// syncs according to the durability policy before completing the callers' futures.
+public class BatchedLineWriter implements Closeable {
+
+    public enum Durability {
+        NONE,       // leave it to the OS page cache; a crash can lose recent lines
+        PER_BATCH,  // fsync before any append in the batch completes
+        INTERVAL    // fsync at most every interval; appends complete before the sync
+    }
+
+    private static final int BUFFER_BYTES = 1 << 20;
+    private static final int BUFFER_COUNT = 4;
+    private static final int MAX_QUEUED = 64 * 1024;
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    // Queue entry: the lines of one append() and who to tell when they are written
+    private static class Pending {
+        final List<String> lines;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Pending(List<String> lines) {
+            this.lines = lines;
+        }
+    }
+
+    private static final Pending SHUTDOWN = new Pending(Collections.emptyList());
+
+    private final Path file;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final long intervalNanos;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    // Owned by the writer thread
+    private final ByteBuffer[] buffers = new ByteBuffer[BUFFER_COUNT];
+    private int current;
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private boolean dirty;
+    private long lastSyncNanos = System.nanoTime();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder appends = new LongAdder();
+    private final LongAdder linesWritten = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder syncs = new LongAdder();
+
+    public BatchedLineWriter(Path file, Durability durability) throws IOException {
+        this(file, durability, 1, TimeUnit.SECONDS);
+    }
+
+    public BatchedLineWriter(Path file, Durability durability, long interval, TimeUnit unit) throws IOException {
+        if (durability == Durability.INTERVAL && interval <= 0) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        this.file = file;
+        this.durability = durability;
+        this.intervalNanos = unit.toNanos(interval);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        }
+        writerThread = new Thread(this::writeLoop, "line-writer-" + file.getFileName());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public CompletableFuture<Void> append(String line) {
+        return append(Collections.singletonList(line));
+    }
+
+    // Queues the lines (blocking while the queue is full); the future completes once
+    // they are written, and with PER_BATCH once they are also on disk
+    public CompletableFuture<Void> append(List<String> lines) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Writer is closed: " + file));
+        }
+        Pending pending = new Pending(lines);
+        try {
+            queue.put(pending);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            pending.done.completeExceptionally(e);
+        }
+        // Lost a race with close(): nobody is left to write it
+        if (closed && !writerThread.isAlive()) {
+            failQueued();
+        }
+        return pending.done;
+    }
+
+    private void failQueued() {
+        List<Pending> orphans = new ArrayList<>();
+        queue.drainTo(orphans);
+        for (Pending orphan : orphans) {
+            orphan.done.completeExceptionally(new IOException("Writer is closed: " + file));
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                Pending first = queue.poll(pollTimeoutNanos(), TimeUnit.NANOSECONDS);
+                if (first == null) {
+                    syncIfDue();
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                running = !batch.remove(SHUTDOWN);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                running = false;
+            } finally {
+                batch.clear();
+            }
+        }
+        // Anything that raced with close() is still answered
+        List<Pending> leftover = new ArrayList<>();
+        queue.drainTo(leftover);
+        leftover.remove(SHUTDOWN);
+        writeBatch(leftover);
+    }
+
+    private long pollTimeoutNanos() {
+        if (durability != Durability.INTERVAL || !dirty) {
+            return TimeUnit.MILLISECONDS.toNanos(100);
+        }
+        return Math.max(1, lastSyncNanos + intervalNanos - System.nanoTime());
+    }
+
+    private void writeBatch(List<Pending> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            long lines = 0;
+            for (Pending pending : batch) {
+                for (String line : pending.lines) {
+                    encode(line);
+                    put(LINE_SEPARATOR);
+                }
+                lines += pending.lines.size();
+            }
+            writeBuffers();
+            if (durability == Durability.PER_BATCH) {
+                sync();
+            } else if (durability == Durability.INTERVAL) {
+                syncIfDue();
+            }
+            batches.increment();
+            appends.add(batch.size());
+            linesWritten.add(lines);
+            for (Pending pending : batch) {
+                pending.done.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.clear();
+            }
+            current = 0;
+            for (Pending pending : batch) {
+                pending.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void encode(String line) throws IOException {
+        ByteBuffer buffer = buffers[current];
+        int length = line.length();
+        int i = 0;
+        // ASCII goes straight into the buffer; anything else through the encoder
+        while (i < length) {
+            char c = line.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            if (!buffer.hasRemaining()) {
+                buffer = nextBuffer();
+            }
+            buffer.put((byte) c);
+            i++;
+        }
+        if (i == length) {
+            return;
+        }
+        CharBuffer rest = CharBuffer.wrap(line, i, length);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(rest, buffers[current], true);
+            if (result.isUnderflow()) {
+                result = encoder.flush(buffers[current]);
+            }
+            if (result.isUnderflow()) {
+                return;
+            }
+            nextBuffer();
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        ByteBuffer buffer = buffers[current];
+        if (buffer.remaining() < bytes.length) {
+            buffer = nextBuffer();
+        }
+        buffer.put(bytes);
+    }
+
+    // Moves to the next free buffer, writing out the full set first if none is left
+    private ByteBuffer nextBuffer() throws IOException {
+        if (current == BUFFER_COUNT - 1) {
+            writeBuffers();
+        } else {
+            current++;
+        }
+        return buffers[current];
+    }
+
+    private void writeBuffers() throws IOException {
+        int used = current + 1;
+        long total = 0;
+        for (int i = 0; i < used; i++) {
+            buffers[i].flip();
+            total += buffers[i].remaining();
+        }
+        long written = 0;
+        while (written < total) {
+            written += channel.write(buffers, 0, used);
+        }
+        for (int i = 0; i < used; i++) {
+            buffers[i].clear();
+        }
+        current = 0;
+        if (total > 0) {
+            dirty = true;
+            bytesWritten.add(total);
+        }
+    }
+
+    private void syncIfDue() {
+        if (durability == Durability.INTERVAL && dirty && System.nanoTime() - lastSyncNanos >= intervalNanos) {
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("Error syncing " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // File contents only; the size update needed to read them back is included by fdatasync
+    private void sync() throws IOException {
+        channel.force(false);
+        dirty = false;
+        lastSyncNanos = System.nanoTime();
+        syncs.increment();
+    }
+
+    // Waits for everything queued so far, then syncs unless the policy is NONE
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(SHUTDOWN);
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failQueued();
+        try {
+            if (durability != Durability.NONE && dirty) {
+                sync();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Statistics
+    public long getBatchCount() { return batches.sum(); }
+    public long getAppendCount() { return appends.sum(); }
+    public long getLineCount() { return linesWritten.sum(); }
+    public long getBytesWritten() { return bytesWritten.sum(); }
+    public long getSyncCount() { return syncs.sum(); }
+
+    // Throughput per policy with several appending threads: java BatchedLineWriter [threads] [appends]
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        List<String> lines = Arrays.asList(
+                "2024-01-01T00:00:00Z INFO request handled path=/hello status=200 micros=118",
+                "2024-01-01T00:00:00Z WARN slow request path=/file/a.txt status=200 micros=48211");
+        Path file = Files.createTempFile("batched", ".log");
+        try {
+            for (Durability durability : Durability.values()) {
+                Files.deleteIfExists(file);
+                long start = System.nanoTime();
+                BatchedLineWriter writer = new BatchedLineWriter(file, durability, 10, TimeUnit.MILLISECONDS);
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    workers[t] = new Thread(() -> {
+                        for (int i = 0; i < perThread; i++) {
+                            writer.append(lines).join();
+                        }
+                    });
+                    workers[t].start();
+                }
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                writer.close();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%-10s %9.0f appends/s  %8.1f MB/s  batches=%d (%.1f appends each)  syncs=%d%n",
+                        durability, writer.getAppendCount() / seconds, writer.getBytesWritten() / seconds / 1e6,
+                        writer.getBatchCount(), (double) writer.getAppendCount() / writer.getBatchCount(),
+                        writer.getSyncCount());
+            }
+
+            // For comparison: what FileProcessor.writeToFile costs per call
+            Files.deleteIfExists(file);
+            int calls = Math.min(2_000, threads * perThread);
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                try (BufferedWriter writer = Files.newBufferedWriter(file,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                    for (String line : lines) {
+                        writer.write(line);
+                        writer.newLine();
+                    }
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("%-10s %9.0f appends/s  (open, write, close per call, single thread)%n",
+                    "reopen", calls / seconds);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Word counter that works on raw UTF-8 bytes. ASCII words are lowercased in place in
+// the read buffer and looked up in an open-addressing table keyed by byte slices, so
+// the common case allocates nothing; a String is made only the first time a word is
+// seen. Words with non-ASCII bytes take the slow path (strict decode + toLowerCase)
+// and are keyed by the UTF-8 of their lowercase form, so results match WordCounter.
+public class ByteWordCounter {
+    private static final int READ_BUFFER_BYTES = 256 * 1024;
+
+    // Turkish and Azeri lowercase 'I' to a dotless i; other locales agree with ASCII
+    // rules for words that are entirely ASCII
+    private final boolean asciiCaseSafe;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    // Hash table: slot -> entry index + 1 (0 = empty); entries hold the key bytes in the arena
+    private int[] slots = new int[1024];
+    private int[] hashes = new int[512];
+    private int[] offsets = new int[512];
+    private int[] lengths = new int[512];
+    private long[] counts = new long[512];
+    private String[] words = new String[512];
+    private byte[] arena = new byte[8192];
+    private int arenaUsed;
+    private int size;
+
+    private byte[] partial = new byte[64];
+    private int partialLength;
+
+    public ByteWordCounter() {
+        String language = Locale.getDefault().getLanguage();
+        asciiCaseSafe = !language.equals("tr") && !language.equals("az");
+    }
+
+    // Counts the bytes [start, end) of a file; the channel is not closed
+    public static Map<String, Long> count(FileChannel channel, long start, long end) throws IOException {
+        ByteWordCounter counter = new ByteWordCounter();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_BYTES, Math.max(16, end - start)));
+        long position = start;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                break;
+            }
+            counter.accept(buffer.array(), 0, n);
+            position += n;
+        }
+        return counter.finish();
+    }
+
+    // The buffer may be modified (ASCII letters are lowercased in place)
+    public void accept(byte[] bytes, int offset, int length) throws CharacterCodingException {
+        int end = offset + length;
+        int wordStart = -1;
+        for (int i = offset; i < end; i++) {
+            if (isSeparator(bytes[i])) {
+                if (wordStart >= 0) {
+                    endWord(bytes, wordStart, i);
+                    wordStart = -1;
+                } else if (partialLength > 0) {
+                    endWord(bytes, i, i);
+                }
+            } else if (wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        if (wordStart >= 0) {
+            appendPartial(bytes, wordStart, end);
+        }
+    }
+
+    public Map<String, Long> finish() throws CharacterCodingException {
+        if (partialLength > 0) {
+            add(partial, 0, partialLength);
+            partialLength = 0;
+        }
+        Map<String, Long> result = new HashMap<>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            result.put(words[i], counts[i]);
+        }
+        return result;
+    }
+
+    // Same six characters as the regex \s; all ASCII, so never part of a multi-byte sequence
+    static boolean isSeparator(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r');
+    }
+
+    private void endWord(byte[] bytes, int start, int end) throws CharacterCodingException {
+        if (partialLength == 0) {
+            add(bytes, start, end - start);
+        } else {
+            appendPartial(bytes, start, end);
+            add(partial, 0, partialLength);
+            partialLength = 0;
+        }
+    }
+
+    private void appendPartial(byte[] bytes, int start, int end) {
+        int needed = partialLength + (end - start);
+        if (needed > partial.length) {
+            partial = Arrays.copyOf(partial, Math.max(needed, partial.length * 2));
+        }
+        System.arraycopy(bytes, start, partial, partialLength, end - start);
+        partialLength = needed;
+    }
+
+    private void add(byte[] bytes, int offset, int length) throws CharacterCodingException {
+        int end = offset + length;
+        int hash = 0;
+        boolean upper = false;
+        for (int i = offset; i < end; i++) {
+            int b = bytes[i];
+            if (b < 0 || (b == 'I' && !asciiCaseSafe)) {
+                addSlow(bytes, offset, length);
+                return;
+            }
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+                upper = true;
+            }
+            hash = 31 * hash + b;
+        }
+        // Only now is the word known to be plain ASCII, so it is safe to rewrite it
+        if (upper) {
+            for (int i = offset; i < end; i++) {
+                byte b = bytes[i];
+                if (b >= 'A' && b <= 'Z') {
+                    bytes[i] = (byte) (b + ('a' - 'A'));
+                }
+            }
+        }
+        int entry = findOrInsert(bytes, offset, length, hash, null);
+        counts[entry]++;
+    }
+
+    private void addSlow(byte[] bytes, int offset, int length) throws CharacterCodingException {
+        String word = decoder.decode(ByteBuffer.wrap(bytes, offset, length)).toString().toLowerCase();
+        byte[] key = word.getBytes(StandardCharsets.UTF_8);
+        int hash = 0;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        int entry = findOrInsert(key, 0, key.length, hash, word);
+        counts[entry]++;
+    }
+
+    // Returns the entry for the key, creating it (and its String) on first sight
+    private int findOrInsert(byte[] key, int offset, int length, int hash, String word) {
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (true) {
+            int entry = slots[slot] - 1;
+            if (entry < 0) {
+                break;
+            }
+            if (hashes[entry] == hash && lengths[entry] == length
+                    && Arrays.equals(arena, offsets[entry], offsets[entry] + length, key, offset, offset + length)) {
+                return entry;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == hashes.length) {
+            growEntries();
+        }
+        if (arenaUsed + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arenaUsed + length, arena.length * 2));
+        }
+        System.arraycopy(key, offset, arena, arenaUsed, length);
+        int entry = size++;
+        hashes[entry] = hash;
+        offsets[entry] = arenaUsed;
+        lengths[entry] = length;
+        words[entry] = word != null ? word : new String(key, offset, length, StandardCharsets.ISO_8859_1);
+        arenaUsed += length;
+        slots[slot] = entry + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return entry;
+    }
+
+    private void growEntries() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        offsets = Arrays.copyOf(offsets, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        words = Arrays.copyOf(words, capacity);
+    }
+
+    private void rehash() {
+        int[] table = new int[slots.length * 2];
+        int mask = table.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = mix(hashes[entry]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = entry + 1;
+        }
+        slots = table;
+    }
+
+    // Spreads the polynomial hash so linear probing doesn't cluster on similar words
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
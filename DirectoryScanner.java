@@ -0,0 +1,390 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+// Recursive directory scanner that lists directories and analyzes files on a pool of
+// workers. At most maxInFlight files are queued or being analyzed at once; when that
+// many are outstanding, the thread that found the next file analyzes it itself, so
+// memory stays bounded on huge trees and the workers can never deadlock on a permit.
+//
+// watch() keeps the results current afterwards: every directory is registered with a
+// WatchService and only files that are created or modified are analyzed again.
+public class DirectoryScanner<R> implements Closeable {
+
+    public interface FileAnalyzer<R> {
+        R analyze(Path file) throws IOException;
+    }
+
+    public interface Listener<R> {
+        void analyzed(Path file, R result);
+
+        void removed(Path file);
+    }
+
+    private static final long DEBOUNCE_MILLIS = 50;
+
+    private final Predicate<Path> filter;
+    private final FileAnalyzer<R> analyzer;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final Map<Path, R> results = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Set<Path> knownDirectories = ConcurrentHashMap.newKeySet();
+    private final AtomicLong filesAnalyzed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile WatchService watchService;
+
+    public DirectoryScanner(Predicate<Path> filter, FileAnalyzer<R> analyzer, int threads, int maxInFlight) {
+        if (threads <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("threads and maxInFlight must be positive");
+        }
+        this.filter = filter;
+        this.analyzer = analyzer;
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "scanner-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    // Tracks outstanding directory and file tasks of one scan, and for a rescan the
+    // paths it found
+    private static class Scan<R> {
+        final Listener<R> listener;
+        final Set<Path> seen;
+        final AtomicLong pending = new AtomicLong(1);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Scan(Listener<R> listener, boolean trackSeen) {
+            this.listener = listener;
+            this.seen = trackSeen ? ConcurrentHashMap.newKeySet() : null;
+        }
+
+        void finished() {
+            if (pending.decrementAndGet() == 0) {
+                done.countDown();
+            }
+        }
+    }
+
+    // Analyzes every matching file under root and returns the results by path
+    public Map<Path, R> scan(Path root) throws InterruptedException {
+        return scan(root, null);
+    }
+
+    private Map<Path, R> scan(Path root, Listener<R> listener) throws InterruptedException {
+        Scan<R> scan = new Scan<>(listener, false);
+        submitDirectory(root, scan);
+        scan.done.await();
+        return results;
+    }
+
+    // Scans a directory seen before and drops what is no longer there
+    private void rescan(Path directory, Listener<R> listener) throws InterruptedException {
+        Scan<R> scan = new Scan<>(listener, true);
+        submitDirectory(directory, scan);
+        scan.done.await();
+        knownDirectories.removeIf(known -> known.startsWith(directory) && !scan.seen.contains(known));
+        results.keySet().removeIf(file -> {
+            if (file.startsWith(directory) && !scan.seen.contains(file)) {
+                listener.removed(file);
+                return true;
+            }
+            return false;
+        });
+    }
+
+    private void submitDirectory(Path directory, Scan<R> scan) {
+        try {
+            workers.execute(() -> {
+                try {
+                    listDirectory(directory, scan);
+                } finally {
+                    scan.finished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            scan.finished();
+        }
+    }
+
+    private void listDirectory(Path directory, Scan<R> scan) {
+        knownDirectories.add(directory);
+        if (scan.seen != null) {
+            scan.seen.add(directory);
+        }
+        WatchService watcher = watchService;
+        if (watcher != null) {
+            register(directory, watcher);
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes;
+                try {
+                    // Symlinks are not followed, so link cycles can't make the walk loop
+                    attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    recordError(entry, e);
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    scan.pending.incrementAndGet();
+                    submitDirectory(entry, scan);
+                } else if (attributes.isRegularFile() && filter.test(entry)) {
+                    if (scan.seen != null) {
+                        scan.seen.add(entry);
+                    }
+                    submitFile(entry, scan);
+                }
+            }
+        } catch (IOException e) {
+            recordError(directory, e);
+        }
+    }
+
+    private void submitFile(Path file, Scan<R> scan) {
+        if (!inFlight.tryAcquire()) {
+            analyzeFile(file, scan.listener);
+            return;
+        }
+        scan.pending.incrementAndGet();
+        try {
+            workers.execute(() -> {
+                try {
+                    analyzeFile(file, scan.listener);
+                } finally {
+                    inFlight.release();
+                    scan.finished();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            scan.finished();
+        }
+    }
+
+    private void analyzeFile(Path file, Listener<R> listener) {
+        try {
+            R result = analyzer.analyze(file);
+            results.put(file, result);
+            filesAnalyzed.incrementAndGet();
+            if (listener != null) {
+                listener.analyzed(file, result);
+            }
+        } catch (IOException | RuntimeException e) {
+            recordError(file, e);
+        }
+    }
+
+    private void recordError(Path path, Exception e) {
+        errors.incrementAndGet();
+        System.err.println("Error scanning " + path + ": " + e.getMessage());
+    }
+
+    // Scans root, then blocks re-analyzing files as they change until close() is called
+    public void watch(Path root, Listener<R> listener) throws IOException, InterruptedException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        watchService = watcher;
+        scan(root);
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                // Editors and copies fire several events per file; collect a short burst
+                // and analyze each file once
+                Map<Path, WatchEvent.Kind<?>> changed = new LinkedHashMap<>();
+                do {
+                    collectEvents(key, changed, listener);
+                } while ((key = watcher.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                applyChanges(changed, listener);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // close() was called
+        }
+    }
+
+    // Maps each touched path to its last event, except that a path created and then
+    // modified stays created
+    private void collectEvents(WatchKey key, Map<Path, WatchEvent.Kind<?>> changed, Listener<R> listener)
+            throws InterruptedException {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (directory == null) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were dropped; fall back to rescanning this directory
+                rescan(directory, listener);
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            changed.merge(path, event.kind(), (previous, kind) ->
+                    previous == StandardWatchEventKinds.ENTRY_CREATE && kind == StandardWatchEventKinds.ENTRY_MODIFY
+                            ? previous : kind);
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    private void applyChanges(Map<Path, WatchEvent.Kind<?>> changed, Listener<R> listener)
+            throws InterruptedException {
+        Map<Path, Boolean> files = new HashMap<>();
+        for (Map.Entry<Path, WatchEvent.Kind<?>> change : changed.entrySet()) {
+            Path path = change.getKey();
+            boolean exists = change.getValue() != StandardWatchEventKinds.ENTRY_DELETE;
+            if (exists && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                // A new directory may already hold files; scan (and register) it. A
+                // modified one only had entries added or removed, which have events
+                // of their own.
+                if (change.getValue() == StandardWatchEventKinds.ENTRY_CREATE || !knownDirectories.contains(path)) {
+                    rescan(path, listener);
+                }
+            } else if (exists && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (filter.test(path)) {
+                    files.put(path, Boolean.TRUE);
+                }
+            } else if (results.remove(path) != null) {
+                listener.removed(path);
+            } else if (knownDirectories.remove(path)) {
+                // A deleted directory: drop everything that was under it
+                knownDirectories.removeIf(directory -> directory.startsWith(path));
+                results.keySet().removeIf(file -> {
+                    if (file.startsWith(path)) {
+                        listener.removed(file);
+                        return true;
+                    }
+                    return false;
+                });
+            }
+        }
+        CountDownLatch done = new CountDownLatch(files.size());
+        for (Path file : files.keySet()) {
+            inFlight.acquire();
+            try {
+                workers.execute(() -> {
+                    try {
+                        analyzeFile(file, listener);
+                    } finally {
+                        inFlight.release();
+                        done.countDown();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // close() was called
+                inFlight.release();
+                done.countDown();
+            }
+        }
+        done.await();
+    }
+
+    private void register(Path directory, WatchService watcher) {
+        try {
+            WatchKey key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            watchedDirectories.put(key, directory);
+        } catch (IOException | ClosedWatchServiceException e) {
+            System.err.println("Cannot watch " + directory + ": " + e.getMessage());
+        }
+    }
+
+    public Map<Path, R> getResults() {
+        return results;
+    }
+
+    public long getFilesAnalyzed() {
+        return filesAnalyzed.get();
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        WatchService watcher = watchService;
+        if (watcher != null) {
+            watcher.close();
+        }
+        workers.shutdown();
+    }
+
+    // Word counts for text files under a directory: java DirectoryScanner <dir> [--watch]
+    public static void main(String[] args) throws Exception {
+        Path root = Paths.get(args.length > 0 ? args[0] : ".");
+        boolean watch = args.length > 1 && args[1].equals("--watch");
+        PathMatcher textFiles = FileSystems.getDefault().getPathMatcher("glob:*.{txt,md,java,log,csv}");
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        DirectoryScanner<Long> scanner = new DirectoryScanner<>(
+                file -> textFiles.matches(file.getFileName()),
+                DirectoryScanner::countWords,
+                threads, threads * 64);
+        long start = System.nanoTime();
+        Map<Path, Long> counts = scanner.scan(root);
+        long words = counts.values().stream().mapToLong(Long::longValue).sum();
+        System.out.printf("Scanned %s: %d files, %d words, %d errors in %d ms%n", root, counts.size(), words,
+                scanner.getErrorCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        if (!watch) {
+            scanner.close();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                scanner.close();
+            } catch (IOException ignored) {
+            }
+        }));
+        System.out.println("Watching for changes (Ctrl+C to stop)...");
+        scanner.watch(root, new Listener<Long>() {
+            @Override
+            public void analyzed(Path file, Long result) {
+                System.out.println("Updated " + file + ": " + result + " words");
+            }
+
+            @Override
+            public void removed(Path file) {
+                System.out.println("Removed " + file);
+            }
+        });
+    }
+
+    static long countWords(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long total = 0;
+            for (long count : ByteWordCounter.count(channel, 0, channel.size()).values()) {
+                total += count;
+            }
+            return total;
+        }
+    }
+}
@@ -1,4 +1,5 @@
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -44,8 +45,24 @@ public class FileProcessor {
         }
     }
     
-    // Process file content with streams
+    // Word frequencies, lowercased. Runs on the byte-level counter; the result is the
+    // same as analyzeTextWithStreams, which spells out what is being counted.
     public static Map<String, Long> analyzeText(String filePath) {
+        return analyzeTextStreaming(filePath);
+    }
+
+    // Same, answered from the cache when the file hasn't changed since it was analyzed
+    public static Map<String, Long> analyzeText(AnalysisCache cache, String filePath) {
+        try {
+            return cache.analyze(Paths.get(filePath));
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    // Process file content with streams
+    public static Map<String, Long> analyzeTextWithStreams(String filePath) {
         List<String> lines = readFileModern(filePath);
         
         Map<String, Long> wordFrequency = lines.stream()
@@ -59,7 +76,65 @@ public class FileProcessor {
         
         return wordFrequency;
     }
-    
+
+    // Reads the file incrementally so memory grows with the number of distinct words
+    // rather than the file size
+    public static Map<String, Long> analyzeTextStreaming(String filePath) {
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            return ByteWordCounter.count(channel, 0, channel.size());
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    // Same result again, counted in parallel over whitespace-aligned chunks of the file
+    public static Map<String, Long> analyzeTextParallel(String filePath) {
+        try {
+            return ParallelWordCounter.count(Paths.get(filePath));
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+
+    // The k most frequent words, highest first (ties alphabetical)
+    public static List<Map.Entry<String, Long>> topWords(String filePath, int k) {
+        return TopK.exact(analyzeText(filePath), k);
+    }
+
+    // Approximate top k in bounded memory: a Space-Saving sketch with `counters` slots.
+    // Counts may be too high by at most (total words / counters); see TopK.SpaceSaving.
+    public static List<TopK.Estimate> topWordsApproximate(String filePath, int k, int counters) {
+        TopK.SpaceSaving sketch = new TopK.SpaceSaving(counters);
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(filePath))) {
+            WordCounter tokenizer = new WordCounter(sketch::add);
+            tokenizer.acceptAll(reader);
+            tokenizer.finish();
+        } catch (IOException e) {
+            System.err.println("Error reading file: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        return sketch.top(k);
+    }
+
+    // The streaming and parallel analyses must count exactly what the stream version does:
+    //   java FileProcessor --check [file...]
+    public static boolean checkAnalyses(List<String> filePaths) {
+        boolean ok = true;
+        for (String filePath : filePaths) {
+            Map<String, Long> expected = analyzeTextWithStreams(filePath);
+            ok &= check("streaming analysis of " + filePath, expected.equals(analyzeTextStreaming(filePath)));
+            ok &= check("parallel analysis of " + filePath, expected.equals(analyzeTextParallel(filePath)));
+        }
+        return ok;
+    }
+
+    private static boolean check(String what, boolean passed) {
+        System.out.println("  " + (passed ? "OK    " : "FAILED") + " " + what);
+        return passed;
+    }
+
     // File operations utility
     public static void demonstrateFileOperations() {
         System.out.println("\n=== File Operations ===");
@@ -84,14 +159,13 @@ public class FileProcessor {
         
         // Analyze text
         System.out.println("\nWord Frequency Analysis:");
-        Map<String, Long> wordFreq = analyzeText(testFilePath);
-        wordFreq.entrySet().stream()
-            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-            .limit(5)
-            .forEach(entry -> 
-                System.out.println(entry.getKey() + ": " + entry.getValue())
-            );
-        
+        Map<String, Long> wordFreq = analyzeTextWithStreams(testFilePath);
+        List<Map.Entry<String, Long>> topWords = TopK.exact(wordFreq, 5);
+        topWords.forEach(entry ->
+            System.out.println(entry.getKey() + ": " + entry.getValue())
+        );
+        System.out.println("Approximate top 3 (8 counters): " + topWordsApproximate(testFilePath, 3, 8));
+
         // Write analysis to output file
         List<String> analysisOutput = new ArrayList<>();
         analysisOutput.add("=== Text Analysis Report ===");
@@ -99,12 +173,9 @@ public class FileProcessor {
         analysisOutput.add("Total words: " + wordFreq.values().stream().mapToLong(Long::longValue).sum());
         analysisOutput.add("\nTop 5 words:");
         
-        wordFreq.entrySet().stream()
-            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-            .limit(5)
-            .forEach(entry -> 
-                analysisOutput.add(entry.getKey() + ": " + entry.getValue())
-            );
+        topWords.forEach(entry ->
+            analysisOutput.add(entry.getKey() + ": " + entry.getValue())
+        );
         
         writeToFile(outputFilePath, analysisOutput);
         
@@ -140,6 +211,20 @@ public class FileProcessor {
             this.password = password;
             this.createdDate = new Date();
         }
+
+        // Used when reading records back; like Java serialization, no password is stored
+        public User(String username, Date createdDate) {
+            this.username = username;
+            this.createdDate = createdDate;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public Date getCreatedDate() {
+            return createdDate;
+        }
         
         @Override
         public String toString() {
@@ -171,16 +256,55 @@ public class FileProcessor {
         } catch (IOException | ClassNotFoundException e) {
             System.err.println("Deserialization error: " + e.getMessage());
         }
+
+        // Same data with the compact binary codec: many users per file, readable in
+        // order or one at a time by offset
+        String recordFile = "user_data.bin";
+        List<User> users = Arrays.asList(user, new User("jane_doe", "hunter2"), new User("admin", "admin"));
+        long[] offsets = new long[users.size()];
+        try (UserCodec.RecordWriter writer = new UserCodec.RecordWriter(Paths.get(recordFile))) {
+            for (int i = 0; i < users.size(); i++) {
+                offsets[i] = writer.write(users.get(i));
+            }
+            System.out.println("\nWrote " + users.size() + " records with UserCodec");
+        } catch (IOException e) {
+            System.err.println("Serialization error: " + e.getMessage());
+        }
+        try (UserCodec.RecordReader reader = new UserCodec.RecordReader(Paths.get(recordFile))) {
+            User next;
+            while ((next = reader.next()) != null) {
+                System.out.println("Record read: " + next);
+            }
+        } catch (IOException e) {
+            System.err.println("Deserialization error: " + e.getMessage());
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(recordFile), StandardOpenOption.READ)) {
+            UserCodec.checkHeader(channel);
+            System.out.println("Record at offset " + offsets[1] + ": " + UserCodec.readAt(channel, offsets[1]));
+            System.out.println("Sizes: " + Files.size(Paths.get(serializedFile)) + " bytes serialized (1 user), "
+                + Files.size(Paths.get(recordFile)) + " bytes with UserCodec (" + users.size() + " users)");
+        } catch (IOException e) {
+            System.err.println("Deserialization error: " + e.getMessage());
+        }
         
         // Cleanup
         try {
             Files.deleteIfExists(Paths.get(serializedFile));
+            Files.deleteIfExists(Paths.get(recordFile));
         } catch (IOException e) {
             System.err.println("Cleanup error: " + e.getMessage());
         }
     }
     
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--check")) {
+            List<String> files = args.length > 1
+                    ? Arrays.asList(args).subList(1, args.length) : Arrays.asList("FileProcessor.java");
+            if (!checkAnalyses(files)) {
+                System.exit(1);
+            }
+            return;
+        }
         System.out.println("=== File Processor Demo ===");
         
         demonstrateFileOperations();
@@ -201,6 +325,18 @@ public class FileProcessor {
                 .filter(Files::isRegularFile)
                 .map(Path::getFileName)
                 .forEach(System.out::println);
+
+            // Whole tree, analyzed in parallel (see DirectoryScanner for watch mode)
+            PathMatcher textFiles = FileSystems.getDefault().getPathMatcher("glob:*.{txt,md,java}");
+            try (DirectoryScanner<Long> scanner = new DirectoryScanner<>(
+                    file -> textFiles.matches(file.getFileName()), DirectoryScanner::countWords,
+                    Runtime.getRuntime().availableProcessors(), 256)) {
+                Map<Path, Long> wordCounts = scanner.scan(Paths.get("."));
+                System.out.println("\nText files under current directory: " + wordCounts.size()
+                    + " (" + wordCounts.values().stream().mapToLong(Long::longValue).sum() + " words)");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
                 
         } catch (IOException e) {
             System.err.println("Directory operation error: " + e.getMessage());
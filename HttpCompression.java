@@ -0,0 +1,135 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Content-Encoding negotiation and compression helpers for SimpleWebServer.
+// Bodies small enough to cache are compressed once and reused; larger files are
+// compressed as they stream (see wrap).
+public class HttpCompression {
+    // Below this size the headers and CPU cost outweigh the saved bytes
+    static final int MIN_SIZE = Integer.getInteger("server.compression.minBytes", 1024);
+
+    enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        String token() {
+            return token;
+        }
+
+        // Compresses everything written to the returned stream into out; closing it
+        // finishes the encoding and closes out
+        OutputStream wrap(OutputStream out) throws IOException {
+            return this == GZIP ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+        }
+
+        byte[] compress(byte[] body) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, body.length / 3));
+            try (OutputStream out = wrap(buffer)) {
+                out.write(body);
+            } catch (IOException e) {
+                // Writing to memory can't fail
+                throw new UncheckedIOException(e);
+            }
+            return buffer.toByteArray();
+        }
+    }
+
+    // Picks the best encoding the client accepts, or null for identity.
+    // Honors q-values (q=0 refuses) and "*"; gzip wins ties since every client supports it.
+    static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double wildcard = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.trim().split(";");
+            String coding = fields[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < fields.length; i++) {
+                String param = fields[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            switch (coding) {
+                case "gzip":
+                case "x-gzip":
+                    gzip = q;
+                    break;
+                case "deflate":
+                    deflate = q;
+                    break;
+                case "*":
+                    wildcard = q;
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (gzip < 0) gzip = wildcard;
+        if (deflate < 0) deflate = wildcard;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? Encoding.GZIP : Encoding.DEFLATE;
+    }
+
+    static boolean isCompressible(String contentType) {
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")
+                || type.startsWith("application/json")
+                || type.startsWith("application/javascript")
+                || type.startsWith("image/svg+xml");
+    }
+
+    static boolean shouldCompress(String contentType, long size) {
+        return size >= MIN_SIZE && isCompressible(contentType);
+    }
+
+    // A fixed body with all of its encodings computed up front, e.g. the home page
+    static class Precompressed {
+        private final byte[] identity;
+        private final byte[] gzip;
+        private final byte[] deflate;
+
+        Precompressed(byte[] identity, String contentType) {
+            this.identity = identity;
+            boolean compress = shouldCompress(contentType, identity.length);
+            this.gzip = compress ? smallerOrNull(Encoding.GZIP.compress(identity), identity) : null;
+            this.deflate = compress ? smallerOrNull(Encoding.DEFLATE.compress(identity), identity) : null;
+        }
+
+        byte[] identity() {
+            return identity;
+        }
+
+        // Returns null when the encoding isn't worth using for this body
+        byte[] encoded(Encoding encoding) {
+            return encoding == Encoding.GZIP ? gzip : deflate;
+        }
+
+        boolean isCompressible() {
+            return gzip != null || deflate != null;
+        }
+
+        private static byte[] smallerOrNull(byte[] compressed, byte[] identity) {
+            return compressed.length < identity.length ? compressed : null;
+        }
+    }
+}
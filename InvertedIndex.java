@@ -0,0 +1,564 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Persistent inverted index: which files contain a word, and how often.
+//
+// The index directory holds immutable segment files plus a MANIFEST naming the live
+// segments, the document table (id -> path) and the ids of removed documents. Segments
+// are memory-mapped on open, so opening costs a manifest read and lookups touch only
+// the pages they need. Adds and removes are buffered until commit(), which writes one
+// new segment and then atomically replaces the manifest; a crash before that leaves
+// the previous commit intact. compact() rewrites everything live into one segment.
+//
+// Segment layout (big-endian):
+//   header     magic "IIDX" | version u16 | pad u16 | termCount i32 | pad i32 | termBytesAt i64 | postingsAt i64
+//   dictionary termCount x (termOffset i32 | termLength i32 | postingsOffset i64 | postingCount i32)
+//   term bytes UTF-8 terms, sorted by unsigned byte order
+//   postings   per term, postingCount x (docId i32 | count i64), ascending docId
+public class InvertedIndex implements Closeable {
+    private static final int SEGMENT_MAGIC = 0x49494458; // "IIDX"
+    private static final int MANIFEST_MAGIC = 0x49494D46; // "IIMF"
+    private static final short VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int DICTIONARY_ENTRY_BYTES = 20;
+    private static final int POSTING_BYTES = 12;
+    private static final String MANIFEST = "MANIFEST";
+
+    // One mapped, read-only segment
+    private static class Segment {
+        final String name;
+        final MappedByteBuffer buffer;
+        final int termCount;
+        final long termBytesAt;
+
+        Segment(String name, MappedByteBuffer buffer) throws IOException {
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != SEGMENT_MAGIC) {
+                throw new IOException("Not an index segment: " + name);
+            }
+            if (buffer.getShort(4) > VERSION) {
+                throw new IOException("Unsupported segment version in " + name);
+            }
+            this.name = name;
+            this.buffer = buffer;
+            this.termCount = buffer.getInt(8);
+            this.termBytesAt = buffer.getLong(16);
+        }
+
+        // Binary search of the dictionary; returns the entry index or -1
+        int find(byte[] term) {
+            int low = 0;
+            int high = termCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareTerm(mid, term);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        private int compareTerm(int entry, byte[] term) {
+            int at = HEADER_BYTES + entry * DICTIONARY_ENTRY_BYTES;
+            long offset = termBytesAt + buffer.getInt(at);
+            int length = buffer.getInt(at + 4);
+            int common = Math.min(length, term.length);
+            for (int i = 0; i < common; i++) {
+                int cmp = Byte.compareUnsigned(buffer.get((int) (offset + i)), term[i]);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return Integer.compare(length, term.length);
+        }
+
+        // Adds this segment's postings for the entry to counts, skipping removed docs
+        void collect(int entry, Set<Integer> deleted, Map<Integer, Long> counts) {
+            int at = HEADER_BYTES + entry * DICTIONARY_ENTRY_BYTES;
+            long postingsOffset = buffer.getLong(at + 8);
+            int postingCount = buffer.getInt(at + 16);
+            for (int i = 0; i < postingCount; i++) {
+                int p = (int) (postingsOffset + (long) i * POSTING_BYTES);
+                int docId = buffer.getInt(p);
+                if (!deleted.contains(docId)) {
+                    counts.merge(docId, buffer.getLong(p + 4), Long::sum);
+                }
+            }
+        }
+    }
+
+    private final Path directory;
+    // Committed state; commit() and compact() build the next version aside and swap it
+    // in only once it is on disk, so a failed write changes nothing queries can see
+    private List<Segment> segments = new ArrayList<>();
+    private Map<Integer, Path> documents = new HashMap<>();
+    private Map<Path, Integer> documentIds = new HashMap<>();
+    private Set<Integer> deleted = new HashSet<>();
+    private int nextDocumentId;
+    private int nextSegmentId;
+
+    // Uncommitted changes
+    private final Map<Path, Map<String, Long>> pendingAdds = new LinkedHashMap<>();
+    private final Set<Path> pendingRemoves = new HashSet<>();
+
+    private InvertedIndex(Path directory) {
+        this.directory = directory;
+    }
+
+    // Opens the index in the directory, creating an empty one if there is none
+    public static InvertedIndex open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        InvertedIndex index = new InvertedIndex(directory);
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            index.readManifest(manifest);
+        }
+        return index;
+    }
+
+    // Indexes a file's current contents (replacing any earlier version) at the next commit
+    public synchronized void add(Path file) throws IOException {
+        Path key = file.toAbsolutePath().normalize();
+        try (FileChannel channel = FileChannel.open(key, StandardOpenOption.READ)) {
+            add(key, ByteWordCounter.count(channel, 0, channel.size()));
+        }
+    }
+
+    // Same, for a file whose word counts are already known
+    public synchronized void add(Path file, Map<String, Long> wordCounts) {
+        Path key = file.toAbsolutePath().normalize();
+        pendingRemoves.remove(key);
+        pendingAdds.put(key, wordCounts);
+    }
+
+    public synchronized void remove(Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        pendingAdds.remove(key);
+        pendingRemoves.add(key);
+    }
+
+    public synchronized boolean contains(Path file) {
+        return documentIds.containsKey(file.toAbsolutePath().normalize());
+    }
+
+    public synchronized int getDocumentCount() {
+        return documentIds.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    // Makes pending adds and removes durable and visible to queries
+    public synchronized void commit() throws IOException {
+        if (pendingAdds.isEmpty() && pendingRemoves.isEmpty()) {
+            return;
+        }
+        Map<Integer, Path> newDocuments = new HashMap<>(documents);
+        Map<Path, Integer> newDocumentIds = new HashMap<>(documentIds);
+        Set<Integer> newDeleted = new HashSet<>(deleted);
+        int newNextDocumentId = nextDocumentId;
+        Set<Path> replaced = new HashSet<>(pendingRemoves);
+        replaced.addAll(pendingAdds.keySet());
+        for (Path path : replaced) {
+            Integer id = newDocumentIds.remove(path);
+            if (id != null) {
+                newDocuments.remove(id);
+                newDeleted.add(id);
+            }
+        }
+        Map<Integer, Map<String, Long>> batch = new LinkedHashMap<>();
+        for (Map.Entry<Path, Map<String, Long>> add : pendingAdds.entrySet()) {
+            int id = newNextDocumentId++;
+            newDocuments.put(id, add.getKey());
+            newDocumentIds.put(add.getKey(), id);
+            batch.put(id, add.getValue());
+        }
+        List<Segment> newSegments = new ArrayList<>(segments);
+        Segment added = batch.isEmpty() ? null : writeSegment(batch);
+        if (added != null) {
+            newSegments.add(added);
+        }
+        try {
+            writeManifest(newNextDocumentId, newSegments, newDocuments, newDeleted);
+        } catch (IOException e) {
+            // The pending changes stay queued, so a retry writes them again
+            deleteSegmentQuietly(added);
+            throw e;
+        }
+        segments = newSegments;
+        documents = newDocuments;
+        documentIds = newDocumentIds;
+        deleted = newDeleted;
+        nextDocumentId = newNextDocumentId;
+        pendingAdds.clear();
+        pendingRemoves.clear();
+    }
+
+    // Files containing the word, with how often it occurs in each
+    public synchronized Map<Path, Long> query(String word) {
+        return toPaths(lookup(word));
+    }
+
+    // Files containing every word; the value is the combined count of those words
+    public synchronized Map<Path, Long> queryAll(String... words) {
+        Map<Integer, Long> result = null;
+        for (String word : words) {
+            Map<Integer, Long> counts = lookup(word);
+            if (result == null) {
+                result = counts;
+            } else {
+                result.keySet().retainAll(counts.keySet());
+                result.replaceAll((doc, count) -> count + counts.get(doc));
+            }
+            if (result.isEmpty()) {
+                break;
+            }
+        }
+        return toPaths(result == null ? new HashMap<>() : result);
+    }
+
+    // Files containing any of the words; the value is the combined count of those words
+    public synchronized Map<Path, Long> queryAny(String... words) {
+        Map<Integer, Long> result = new HashMap<>();
+        for (String word : words) {
+            lookup(word).forEach((doc, count) -> result.merge(doc, count, Long::sum));
+        }
+        return toPaths(result);
+    }
+
+    private Map<Integer, Long> lookup(String word) {
+        byte[] term = word.toLowerCase().getBytes(StandardCharsets.UTF_8);
+        Map<Integer, Long> counts = new HashMap<>();
+        for (Segment segment : segments) {
+            int entry = segment.find(term);
+            if (entry >= 0) {
+                segment.collect(entry, deleted, counts);
+            }
+        }
+        return counts;
+    }
+
+    private Map<Path, Long> toPaths(Map<Integer, Long> counts) {
+        Map<Path, Long> result = new TreeMap<>();
+        counts.forEach((doc, count) -> result.put(documents.get(doc), count));
+        return result;
+    }
+
+    // Rewrites all live postings into a single segment and forgets removed documents
+    public synchronized void compact() throws IOException {
+        commit();
+        if (segments.size() <= 1 && deleted.isEmpty()) {
+            return;
+        }
+        Map<Integer, Map<String, Long>> live = new TreeMap<>();
+        for (Segment segment : segments) {
+            for (int entry = 0; entry < segment.termCount; entry++) {
+                String term = termAt(segment, entry);
+                Map<Integer, Long> postings = new HashMap<>();
+                segment.collect(entry, deleted, postings);
+                postings.forEach((doc, count) -> live.computeIfAbsent(doc, d -> new HashMap<>()).put(term, count));
+            }
+        }
+        List<Segment> newSegments = new ArrayList<>();
+        Segment merged = live.isEmpty() ? null : writeSegment(live);
+        if (merged != null) {
+            newSegments.add(merged);
+        }
+        Set<Integer> newDeleted = new HashSet<>();
+        try {
+            writeManifest(nextDocumentId, newSegments, documents, newDeleted);
+        } catch (IOException e) {
+            deleteSegmentQuietly(merged);
+            throw e;
+        }
+        List<Segment> old = segments;
+        segments = newSegments;
+        deleted = newDeleted;
+        for (Segment segment : old) {
+            Files.deleteIfExists(directory.resolve(segment.name));
+        }
+    }
+
+    // Removes a segment file that no manifest refers to
+    private void deleteSegmentQuietly(Segment segment) {
+        if (segment == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(directory.resolve(segment.name));
+        } catch (IOException e) {
+            System.err.println("Could not delete unused segment " + segment.name + ": " + e.getMessage());
+        }
+    }
+
+    private static String termAt(Segment segment, int entry) {
+        int at = HEADER_BYTES + entry * DICTIONARY_ENTRY_BYTES;
+        int offset = (int) (segment.termBytesAt + segment.buffer.getInt(at));
+        byte[] bytes = new byte[segment.buffer.getInt(at + 4)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = segment.buffer.get(offset + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private Segment writeSegment(Map<Integer, Map<String, Long>> batch) throws IOException {
+        // term -> postings in docId order
+        Map<String, List<long[]>> postings = new HashMap<>();
+        List<Integer> docIds = new ArrayList<>(batch.keySet());
+        docIds.sort(null);
+        for (int docId : docIds) {
+            batch.get(docId).forEach((term, count) ->
+                    postings.computeIfAbsent(term, t -> new ArrayList<>()).add(new long[] {docId, count}));
+        }
+        byte[][] terms = new byte[postings.size()][];
+        String[] termStrings = new String[postings.size()];
+        int n = 0;
+        for (String term : postings.keySet()) {
+            terms[n] = term.getBytes(StandardCharsets.UTF_8);
+            termStrings[n] = term;
+            n++;
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(terms[a], terms[b]));
+
+        long termBytes = 0;
+        long postingCount = 0;
+        for (int i = 0; i < n; i++) {
+            termBytes += terms[i].length;
+            postingCount += postings.get(termStrings[i]).size();
+        }
+        long termBytesAt = HEADER_BYTES + (long) n * DICTIONARY_ENTRY_BYTES;
+        long postingsAt = termBytesAt + termBytes;
+        long size = postingsAt + postingCount * POSTING_BYTES;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Segment too large to map; commit in smaller batches");
+        }
+
+        String name = String.format("segment-%06d.idx", nextSegmentId++);
+        Path file = directory.resolve(name);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file), 64 * 1024))) {
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(0);
+            out.writeInt(n);
+            out.writeInt(0);
+            out.writeLong(termBytesAt);
+            out.writeLong(postingsAt);
+            int termOffset = 0;
+            long postingsOffset = postingsAt;
+            for (int i : order) {
+                int count = postings.get(termStrings[i]).size();
+                out.writeInt(termOffset);
+                out.writeInt(terms[i].length);
+                out.writeLong(postingsOffset);
+                out.writeInt(count);
+                termOffset += terms[i].length;
+                postingsOffset += (long) count * POSTING_BYTES;
+            }
+            for (int i : order) {
+                out.write(terms[i]);
+            }
+            for (int i : order) {
+                for (long[] posting : postings.get(termStrings[i])) {
+                    out.writeInt((int) posting[0]);
+                    out.writeLong(posting[1]);
+                }
+            }
+        }
+        sync(file);
+        // The manifest must never name a segment whose directory entry could be lost
+        syncDirectory(directory);
+        return mapSegment(name);
+    }
+
+    private Segment mapSegment(String name) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(name), StandardOpenOption.READ)) {
+            return new Segment(name, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    private void writeManifest(int documentIdLimit, List<Segment> liveSegments, Map<Integer, Path> liveDocuments,
+            Set<Integer> deletedIds) throws IOException {
+        Path temp = directory.resolve(MANIFEST + ".tmp");
+        try (OutputStream file = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(MANIFEST_MAGIC);
+            out.writeShort(VERSION);
+            out.writeInt(documentIdLimit);
+            out.writeInt(nextSegmentId);
+            out.writeInt(liveSegments.size());
+            for (Segment segment : liveSegments) {
+                out.writeUTF(segment.name);
+            }
+            out.writeInt(liveDocuments.size());
+            for (Map.Entry<Integer, Path> document : liveDocuments.entrySet()) {
+                out.writeInt(document.getKey());
+                out.writeUTF(document.getValue().toString());
+            }
+            out.writeInt(deletedIds.size());
+            for (int id : deletedIds) {
+                out.writeInt(id);
+            }
+        }
+        sync(temp);
+        try {
+            Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(directory);
+    }
+
+    private void readManifest(Path manifest) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+            if (in.readInt() != MANIFEST_MAGIC) {
+                throw new IOException("Not an index manifest: " + manifest);
+            }
+            if (in.readShort() > VERSION) {
+                throw new IOException("Unsupported index version in " + manifest);
+            }
+            nextDocumentId = in.readInt();
+            nextSegmentId = in.readInt();
+            int segmentCount = in.readInt();
+            for (int i = 0; i < segmentCount; i++) {
+                segments.add(mapSegment(in.readUTF()));
+            }
+            int documentCount = in.readInt();
+            for (int i = 0; i < documentCount; i++) {
+                int id = in.readInt();
+                Path path = Paths.get(in.readUTF());
+                documents.put(id, path);
+                documentIds.put(path, id);
+            }
+            int deletedCount = in.readInt();
+            for (int i = 0; i < deletedCount; i++) {
+                deleted.add(in.readInt());
+            }
+        }
+    }
+
+    private static void sync(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Makes renames and new files in the directory durable. Best effort: not every
+    // platform can open a directory for syncing.
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The rename is still atomic, just not yet known to be durable
+        }
+    }
+
+    // Pending changes are dropped; segments are unmapped once unreachable
+    @Override
+    public synchronized void close() {
+        pendingAdds.clear();
+        pendingRemoves.clear();
+        segments.clear();
+    }
+
+    // java InvertedIndex <indexDir> add <file|dir>... | remove <file>... | query <word>...
+    //                               | any <word>... | compact | stats
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: java InvertedIndex <indexDir> add|remove|query|any|compact|stats [args]");
+            return;
+        }
+        long start = System.nanoTime();
+        try (InvertedIndex index = InvertedIndex.open(Paths.get(args[0]))) {
+            long opened = System.nanoTime();
+            String[] rest = Arrays.copyOfRange(args, 2, args.length);
+            switch (args[1]) {
+                case "add":
+                    PathMatcher textFiles = FileSystems.getDefault().getPathMatcher("glob:*.{txt,md,java,log,csv}");
+                    for (String arg : rest) {
+                        Path path = Paths.get(arg);
+                        if (Files.isDirectory(path)) {
+                            try (DirectoryScanner<Map<String, Long>> scanner = new DirectoryScanner<>(
+                                    file -> textFiles.matches(file.getFileName()),
+                                    file -> {
+                                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                                            return ByteWordCounter.count(channel, 0, channel.size());
+                                        }
+                                    },
+                                    Runtime.getRuntime().availableProcessors(), 256)) {
+                                scanner.scan(path).forEach(index::add);
+                            }
+                        } else {
+                            index.add(path);
+                        }
+                    }
+                    index.commit();
+                    System.out.println("Indexed; " + index.getDocumentCount() + " documents in "
+                            + index.getSegmentCount() + " segments");
+                    break;
+                case "remove":
+                    for (String arg : rest) {
+                        index.remove(Paths.get(arg));
+                    }
+                    index.commit();
+                    System.out.println(index.getDocumentCount() + " documents left");
+                    break;
+                case "query":
+                case "any":
+                    Map<Path, Long> hits = args[1].equals("query") ? index.queryAll(rest) : index.queryAny(rest);
+                    hits.entrySet().stream()
+                        .sorted(Map.Entry.<Path, Long>comparingByValue().reversed())
+                        .limit(20)
+                        .forEach(hit -> System.out.println(hit.getValue() + "\t" + hit.getKey()));
+                    System.out.printf("%d files (opened in %.1f ms, queried in %.1f ms)%n", hits.size(),
+                            (opened - start) / 1e6, (System.nanoTime() - opened) / 1e6);
+                    break;
+                case "compact":
+                    index.compact();
+                    System.out.println("Compacted into " + index.getSegmentCount() + " segment(s)");
+                    break;
+                case "stats":
+                    System.out.printf("%d documents, %d segments (opened in %.1f ms)%n",
+                            index.getDocumentCount(), index.getSegmentCount(), (opened - start) / 1e6);
+                    break;
+                default:
+                    System.err.println("Unknown command: " + args[1]);
+            }
+        }
+    }
+}
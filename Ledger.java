@@ -0,0 +1,459 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Durable set of BankAccounts: every successful operation is recorded in an
+// AccountJournal, and opening the ledger replays the journal to rebuild the accounts
+// with their original ids and balances.
+//
+// An operation and its journal append happen together under one short lock, so the
+// journal order is the order operations took effect and replaying any prefix of it
+// (all that survives a crash) gives a state that really existed. Waiting for the
+// record to reach the disk happens outside the lock, where concurrent callers share
+// fsyncs (see AccountJournal). Accounts must only be changed through the ledger.
+//
+// snapshot() keeps startup time flat as the journal grows. It holds the same lock only
+// long enough to copy the balances together with the journal position they correspond
+// to, then writes the copy in the background while operations continue. Opening loads
+// the newest snapshot and replays just the journal after its position.
+public class Ledger implements Closeable {
+    static final String JOURNAL_FILE = "journal";
+    private static final int SNAPSHOTS_KEPT = 2;
+
+    private final Path directory;
+    private final AccountJournal journal;
+    private final Map<Integer, BankAccount> accounts = new ConcurrentHashMap<>();
+    private final Object sequencer = new Object();
+    private volatile IOException failure;
+    private final ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ledger-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LedgerSnapshot loadedSnapshot;
+    private final AtomicLong snapshotsWritten = new AtomicLong();
+
+    public Ledger(Path directory, BatchedLineWriter.Durability durability) throws IOException {
+        this(directory, durability, 10, TimeUnit.MILLISECONDS);
+    }
+
+    public Ledger(Path directory, BatchedLineWriter.Durability durability, long interval, TimeUnit unit)
+            throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        // Only clears temporary files left by a snapshot that was interrupted
+        LedgerSnapshot.prune(directory, Integer.MAX_VALUE);
+        loadedSnapshot = LedgerSnapshot.readNewest(directory);
+        Path journalFile = directory.resolve(JOURNAL_FILE);
+        if (loadedSnapshot == null) {
+            journal = new AccountJournal(journalFile, durability, interval, unit, this::replay);
+        } else {
+            for (int i = 0; i < loadedSnapshot.ids.length; i++) {
+                int id = loadedSnapshot.ids[i];
+                accounts.put(id, new BankAccount(id, loadedSnapshot.holders[i], loadedSnapshot.balances[i]));
+            }
+            BankAccount.reserveAccountIds(loadedSnapshot.lastAccountId);
+            journal = new AccountJournal(journalFile, durability, interval, unit, loadedSnapshot.position,
+                    loadedSnapshot.sequence, this::replay);
+        }
+    }
+
+    // Only operations that succeeded were journaled, in order, so each must succeed again
+    private void replay(long sequence, long timestampNanos, byte type, int account, int counterparty, long cents,
+            String holder) throws IOException {
+        if (type == AccountJournal.OPEN) {
+            accounts.put(account, new BankAccount(account, holder, cents));
+            return;
+        }
+        BankAccount target = accounts.get(account);
+        boolean applied;
+        if (target == null) {
+            applied = false;
+        } else if (type == AccountJournal.DEPOSIT) {
+            applied = target.depositCents(cents);
+        } else if (type == AccountJournal.WITHDRAW) {
+            applied = target.withdrawCents(cents);
+        } else if (type == AccountJournal.TRANSFER) {
+            BankAccount recipient = accounts.get(counterparty);
+            applied = recipient != null && target.transferCents(recipient, cents);
+        } else {
+            throw new IOException("Unknown journal record type " + type + " at sequence " + sequence);
+        }
+        if (!applied) {
+            throw new IOException("Journal record " + sequence + " does not apply to the replayed accounts");
+        }
+    }
+
+    public BankAccount openAccount(String holder, long initialCents) throws IOException {
+        if (holder == null) {
+            // Snapshots store the holder as a string; null would make every one fail
+            throw new NullPointerException("holder must not be null");
+        }
+        if (initialCents < 0) {
+            throw new IllegalArgumentException("Invalid initial balance: " + initialCents + " cents");
+        }
+        BankAccount account;
+        long position;
+        synchronized (sequencer) {
+            checkHealthy();
+            account = new BankAccount(BankAccount.nextAccountId(), holder, initialCents);
+            position = append(AccountJournal.OPEN, account.getAccountId(), 0, initialCents, holder);
+            accounts.put(account.getAccountId(), account);
+        }
+        journal.awaitDurable(position);
+        return account;
+    }
+
+    public boolean deposit(BankAccount account, long cents) throws IOException {
+        checkOwned(account);
+        long position;
+        synchronized (sequencer) {
+            checkHealthy();
+            if (!account.depositCents(cents)) {
+                return false;
+            }
+            position = append(AccountJournal.DEPOSIT, account.getAccountId(), 0, cents, null);
+        }
+        journal.awaitDurable(position);
+        return true;
+    }
+
+    public boolean withdraw(BankAccount account, long cents) throws IOException {
+        checkOwned(account);
+        long position;
+        synchronized (sequencer) {
+            checkHealthy();
+            if (!account.withdrawCents(cents)) {
+                return false;
+            }
+            position = append(AccountJournal.WITHDRAW, account.getAccountId(), 0, cents, null);
+        }
+        journal.awaitDurable(position);
+        return true;
+    }
+
+    public boolean transfer(BankAccount from, BankAccount to, long cents) throws IOException {
+        long position = applyTransfer(from, to, cents);
+        if (position < 0) {
+            return false;
+        }
+        journal.awaitDurable(position);
+        return true;
+    }
+
+    // Applies and journals a transfer without waiting for the disk. Returns the journal
+    // position to pass to awaitDurable(), or -1 if the transfer was rejected.
+    long applyTransfer(BankAccount from, BankAccount to, long cents) throws IOException {
+        checkOwned(from);
+        checkOwned(to);
+        synchronized (sequencer) {
+            checkHealthy();
+            if (!from.transferCents(to, cents)) {
+                return -1;
+            }
+            return append(AccountJournal.TRANSFER, from.getAccountId(), to.getAccountId(), cents, null);
+        }
+    }
+
+    // The operation has already taken effect in memory; if it can't be journaled the
+    // two disagree, so the ledger stops accepting operations. Reopening recovers the
+    // journaled state.
+    private long append(byte type, int account, int counterparty, long cents, String holder) throws IOException {
+        try {
+            return journal.append(type, account, counterparty, cents, holder);
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    // Only accounts opened through this ledger are journaled and replayed; a change to
+    // any other account would be lost on recovery or applied to the wrong one
+    void checkOwned(BankAccount account) {
+        if (accounts.get(account.getAccountId()) != account) {
+            throw new IllegalArgumentException("Account " + account.getAccountNumber()
+                    + " does not belong to this ledger");
+        }
+    }
+
+    private void checkHealthy() throws IOException {
+        if (failure != null) {
+            throw new IOException("Ledger stopped after a journal write failed", failure);
+        }
+    }
+
+    // Writes a snapshot in the background; the future completes with its file
+    public CompletableFuture<Path> snapshot() {
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        try {
+            snapshotter.execute(() -> {
+                try {
+                    result.complete(writeSnapshot());
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Ledger is closed", e));
+        }
+        return result;
+    }
+
+    // Takes a snapshot every interval until the ledger is closed
+    public void scheduleSnapshots(long interval, TimeUnit unit) {
+        snapshotter.scheduleWithFixedDelay(() -> {
+            try {
+                writeSnapshot();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error writing ledger snapshot: " + e.getMessage());
+            }
+        }, interval, interval, unit);
+    }
+
+    private Path writeSnapshot() throws IOException {
+        LedgerSnapshot image;
+        synchronized (sequencer) {
+            checkHealthy();
+            int count = accounts.size();
+            int[] ids = new int[count];
+            long[] balances = new long[count];
+            String[] holders = new String[count];
+            int i = 0;
+            for (BankAccount account : accounts.values()) {
+                ids[i] = account.getAccountId();
+                balances[i] = account.getBalanceCents();
+                holders[i] = account.getAccountHolder();
+                i++;
+            }
+            image = new LedgerSnapshot(journal.getNextSequence(), journal.getPosition(),
+                    BankAccount.lastAccountId(), ids, balances, holders);
+        }
+        // The journal up to the image must be on disk first, or after a crash the
+        // snapshot could be ahead of the journal it continues from
+        journal.sync(image.position);
+        Path file = image.write(directory);
+        LedgerSnapshot.prune(directory, SNAPSHOTS_KEPT);
+        snapshotsWritten.incrementAndGet();
+        return file;
+    }
+
+    // Journal sequence the ledger was restored from, or 0 if no snapshot was loaded
+    public long getSnapshotSequence() {
+        return loadedSnapshot == null ? 0 : loadedSnapshot.sequence;
+    }
+
+    public long getSnapshotsWritten() {
+        return snapshotsWritten.get();
+    }
+
+    public BankAccount getAccount(int accountId) {
+        return accounts.get(accountId);
+    }
+
+    public Collection<BankAccount> getAccounts() {
+        return accounts.values();
+    }
+
+    public AccountJournal getJournal() {
+        return journal;
+    }
+
+    public long getTotalCents() {
+        long total = 0;
+        for (BankAccount account : accounts.values()) {
+            total += account.getBalanceCents();
+        }
+        return total;
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+    }
+
+    // Ops/s per durability policy, then recovery checks: java Ledger [threads] [opsPerThread]
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int accountCount = 64;
+
+        for (BatchedLineWriter.Durability durability : BatchedLineWriter.Durability.values()) {
+            Path directory = Files.createTempDirectory("ledger");
+            try {
+                Map<Integer, Long> expected = new HashMap<>();
+                long operations;
+                long syncs;
+                double seconds;
+                try (Ledger ledger = new Ledger(directory, durability)) {
+                    BankAccount[] bank = new BankAccount[accountCount];
+                    for (int i = 0; i < accountCount; i++) {
+                        bank[i] = ledger.openAccount("Holder " + i, 100_000);
+                    }
+                    long start = System.nanoTime();
+                    Thread[] workers = new Thread[threads];
+                    for (int t = 0; t < threads; t++) {
+                        workers[t] = new Thread(() -> runOperations(ledger, bank, perThread));
+                        workers[t].start();
+                    }
+                    for (Thread worker : workers) {
+                        worker.join();
+                    }
+                    seconds = (System.nanoTime() - start) / 1e9;
+                    for (BankAccount account : ledger.getAccounts()) {
+                        expected.put(account.getAccountId(), account.getBalanceCents());
+                    }
+                    operations = ledger.getJournal().getAppendCount() - accountCount;
+                    syncs = ledger.getJournal().getSyncCount();
+                }
+                System.out.printf("%-10s %10.0f ops/s  %d journaled ops, %d syncs (%.1f ops each)%n", durability,
+                        threads * perThread / seconds, operations, syncs, syncs == 0 ? 0.0 : (double) operations / syncs);
+
+                long start = System.nanoTime();
+                try (Ledger recovered = new Ledger(directory, durability)) {
+                    Map<Integer, Long> balances = new HashMap<>();
+                    for (BankAccount account : recovered.getAccounts()) {
+                        balances.put(account.getAccountId(), account.getBalanceCents());
+                    }
+                    System.out.printf("           recovered %d accounts from %d records in %d ms, balances %s%n",
+                            balances.size(), recovered.getJournal().getRecoveredRecords(),
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                            balances.equals(expected) ? "match" : "DIFFER");
+                }
+                if (durability == BatchedLineWriter.Durability.PER_BATCH) {
+                    demonstrateTornTail(directory);
+                }
+            } finally {
+                deleteDirectory(directory);
+            }
+        }
+        demonstrateSnapshots(threads, perThread * 4);
+    }
+
+    // Snapshots while writers are running, then compares startup with and without it
+    private static void demonstrateSnapshots(int threads, int perThread) throws Exception {
+        Path directory = Files.createTempDirectory("ledger");
+        try {
+            Map<Integer, Long> expected = new HashMap<>();
+            try (Ledger ledger = new Ledger(directory, BatchedLineWriter.Durability.INTERVAL)) {
+                BankAccount[] bank = new BankAccount[64];
+                for (int i = 0; i < bank.length; i++) {
+                    bank[i] = ledger.openAccount("Holder " + i, 100_000);
+                }
+                Thread[] workers = new Thread[threads];
+                for (int t = 0; t < threads; t++) {
+                    workers[t] = new Thread(() -> runOperations(ledger, bank, perThread));
+                    workers[t].start();
+                }
+                long half = (long) threads * perThread / 2;
+                while (ledger.getJournal().getAppendCount() < half) {
+                    Thread.sleep(1);
+                }
+                long start = System.nanoTime();
+                Path file = ledger.snapshot().get();
+                System.out.printf("Snapshot %s written in %d ms while %d threads kept writing%n",
+                        file.getFileName(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), threads);
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+                for (BankAccount account : ledger.getAccounts()) {
+                    expected.put(account.getAccountId(), account.getBalanceCents());
+                }
+            }
+            reportStartup("from mid-run snapshot", directory, expected);
+            try (Ledger ledger = new Ledger(directory, BatchedLineWriter.Durability.INTERVAL)) {
+                ledger.snapshot().get();
+            }
+            reportStartup("from final snapshot  ", directory, expected);
+            LedgerSnapshot.prune(directory, 0);
+            reportStartup("from the journal only", directory, expected);
+        } finally {
+            deleteDirectory(directory);
+        }
+    }
+
+    private static void reportStartup(String label, Path directory, Map<Integer, Long> expected) throws IOException {
+        long start = System.nanoTime();
+        try (Ledger ledger = new Ledger(directory, BatchedLineWriter.Durability.INTERVAL)) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Map<Integer, Long> balances = new HashMap<>();
+            for (BankAccount account : ledger.getAccounts()) {
+                balances.put(account.getAccountId(), account.getBalanceCents());
+            }
+            System.out.printf("  Startup %s %5d ms, replayed %d journal records, balances %s%n", label, millis,
+                    ledger.getJournal().getRecoveredRecords(), balances.equals(expected) ? "match" : "DIFFER");
+        }
+    }
+
+    private static void runOperations(Ledger ledger, BankAccount[] bank, int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            for (int i = 0; i < count; i++) {
+                BankAccount account = bank[random.nextInt(bank.length)];
+                long cents = 1 + random.nextInt(10_000);
+                int choice = random.nextInt(10);
+                if (choice == 0) {
+                    ledger.deposit(account, cents);
+                } else if (choice == 1) {
+                    ledger.withdraw(account, cents);
+                } else {
+                    ledger.transfer(account, bank[random.nextInt(bank.length)], cents);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Ledger operation failed: " + e.getMessage());
+        }
+    }
+
+    // Cuts the last record in half, as a crash in the middle of writing it would
+    private static void demonstrateTornTail(Path directory) throws IOException {
+        long lastRecordStart;
+        long expectedTotal;
+        try (Ledger ledger = new Ledger(directory, BatchedLineWriter.Durability.PER_BATCH)) {
+            BankAccount account = ledger.getAccounts().stream()
+                    .max(Comparator.comparingLong(BankAccount::getBalanceCents)).get();
+            expectedTotal = ledger.getTotalCents();
+            lastRecordStart = ledger.getJournal().getPosition();
+            ledger.withdraw(account, 1);
+        }
+        try (FileChannel channel = FileChannel.open(directory.resolve(JOURNAL_FILE), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(16), lastRecordStart + 24);
+        }
+        try (Ledger recovered = new Ledger(directory, BatchedLineWriter.Durability.PER_BATCH)) {
+            System.out.printf("           torn last record: %d bytes cleared, total %s the state before it%n",
+                    recovered.getJournal().getTruncatedBytes(),
+                    recovered.getTotalCents() == expectedTotal ? "matches" : "DIFFERS from");
+        }
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+    }
+}
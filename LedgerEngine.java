@@ -0,0 +1,273 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Bulk transfer front end for a Ledger. Any number of threads submit transfers into a
+// bounded lock-free ring; one writer thread takes whatever has been published since
+// its last pass, applies the whole batch and completes each command's future.
+//
+// Producers claim a sequence number with one atomic increment, fill the slot and then
+// publish it by storing the sequence number in the slot's marker, so no producer ever
+// waits for another and the writer sees commands in claim order. With only the writer
+// changing the accounts, their locks are never contended, and the journal waits
+// once per batch instead of once per transfer: with PER_BATCH durability a batch
+// shares a single fsync, and the futures complete only after it.
+//
+// Futures complete on the writer thread, so callbacks attached to them should be short.
+public class LedgerEngine implements Closeable {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 4096;
+    private static final int SPINS = 100;
+
+    private final Ledger ledger;
+    private final int mask;
+    private final BankAccount[] froms;
+    private final BankAccount[] tos;
+    private final long[] amounts;
+    private final long[] submitNanos;
+    private final CompletableFuture<Boolean>[] futures;
+    private final AtomicLongArray published;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed; // every sequence below this has been taken by the writer
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+    private volatile long shutdownSequence = Long.MAX_VALUE;
+    private final Thread writer;
+
+    // Owned by the writer thread: the batch being applied
+    private final BankAccount[] batchFrom = new BankAccount[MAX_BATCH];
+    private final BankAccount[] batchTo = new BankAccount[MAX_BATCH];
+    private final long[] batchAmounts = new long[MAX_BATCH];
+    private final long[] batchSubmitted = new long[MAX_BATCH];
+    private final CompletableFuture<Boolean>[] batchFutures;
+    private final boolean[] batchOutcomes = new boolean[MAX_BATCH];
+    private final RuntimeException[] batchErrors = new RuntimeException[MAX_BATCH];
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public LedgerEngine(Ledger ledger) {
+        this(ledger, DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LedgerEngine(Ledger ledger, int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two");
+        }
+        this.ledger = ledger;
+        this.mask = capacity - 1;
+        this.froms = new BankAccount[capacity];
+        this.tos = new BankAccount[capacity];
+        this.amounts = new long[capacity];
+        this.submitNanos = new long[capacity];
+        this.futures = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[capacity];
+        this.batchFutures = (CompletableFuture<Boolean>[]) new CompletableFuture<?>[MAX_BATCH];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+        writer = new Thread(this::writeLoop, "ledger-engine");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Queues a transfer, blocking while the ring is full. The future completes with true
+    // once the transfer is applied (and durable, as the ledger's policy requires), false
+    // if it was rejected for lack of funds or an invalid amount, or exceptionally if the
+    // journal failed. Accounts must have been opened through the engine's ledger.
+    public CompletableFuture<Boolean> submit(BankAccount from, BankAccount to, long cents) {
+        if (from == null || to == null) {
+            throw new NullPointerException("accounts must not be null");
+        }
+        ledger.checkOwned(from);
+        ledger.checkOwned(to);
+        if (closed) {
+            return closedFuture();
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        // Taken before claiming, so latency includes any wait for ring space
+        long submitted = System.nanoTime();
+        long sequence = claimed.getAndIncrement();
+        if (isAfterShutdown(sequence)) {
+            return closedFuture();
+        }
+        awaitSpace(sequence);
+        int slot = (int) (sequence & mask);
+        froms[slot] = from;
+        tos[slot] = to;
+        amounts[slot] = cents;
+        futures[slot] = future;
+        submitNanos[slot] = submitted;
+        publish(slot, sequence);
+        return future;
+    }
+
+    private static CompletableFuture<Boolean> closedFuture() {
+        return CompletableFuture.failedFuture(new IOException("Ledger engine is closed"));
+    }
+
+    // A sequence claimed after close() claimed its own will never be read
+    private boolean isAfterShutdown(long sequence) {
+        if (!closed) {
+            return false;
+        }
+        long stop;
+        while ((stop = shutdownSequence) == Long.MAX_VALUE) {
+            Thread.onSpinWait();
+        }
+        return sequence > stop;
+    }
+
+    private void awaitSpace(long sequence) {
+        int spins = 0;
+        while (sequence - consumed >= froms.length) {
+            if (++spins < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(1_000);
+            }
+        }
+    }
+
+    private void publish(int slot, long sequence) {
+        // The release store makes the slot's fields visible to the writer's read of the marker
+        published.lazySet(slot, sequence);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        long next = 0;
+        boolean running = true;
+        while (running) {
+            // Copy out everything published in order, then hand the slots back at once
+            int n = 0;
+            while (n < MAX_BATCH && published.get((int) ((next + n) & mask)) == next + n) {
+                int slot = (int) ((next + n) & mask);
+                batchFrom[n] = froms[slot];
+                batchTo[n] = tos[slot];
+                batchAmounts[n] = amounts[slot];
+                batchSubmitted[n] = submitNanos[slot];
+                batchFutures[n] = futures[slot];
+                froms[slot] = null;
+                tos[slot] = null;
+                futures[slot] = null;
+                n++;
+            }
+            if (n == 0) {
+                idle(next);
+                continue;
+            }
+            next += n;
+            consumed = next;
+            running = applyBatch(n);
+        }
+    }
+
+    // Returns false once the shutdown marker has been reached
+    private boolean applyBatch(int n) {
+        boolean running = true;
+        long lastPosition = -1;
+        IOException failure = null;
+        for (int i = 0; i < n; i++) {
+            if (batchFutures[i] == null) {
+                // close() marker; nothing after it was published
+                running = false;
+                continue;
+            }
+            if (failure != null) {
+                continue;
+            }
+            try {
+                long position = ledger.applyTransfer(batchFrom[i], batchTo[i], batchAmounts[i]);
+                batchOutcomes[i] = position >= 0;
+                lastPosition = Math.max(lastPosition, position);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                // Fails this transfer only; the writer must keep serving the rest
+                batchErrors[i] = e;
+            }
+        }
+        if (lastPosition >= 0 && failure == null) {
+            try {
+                ledger.getJournal().awaitDurable(lastPosition);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        batches.incrementAndGet();
+        long now = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            CompletableFuture<Boolean> result = batchFutures[i];
+            batchFutures[i] = null;
+            batchFrom[i] = null;
+            batchTo[i] = null;
+            if (result == null) {
+                continue;
+            }
+            latency.record(now - batchSubmitted[i]);
+            RuntimeException error = batchErrors[i];
+            batchErrors[i] = null;
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                (batchOutcomes[i] ? applied : rejected).incrementAndGet();
+                result.complete(batchOutcomes[i]);
+            }
+        }
+        return running;
+    }
+
+    private void idle(long next) {
+        for (int spins = 0; spins < SPINS; spins++) {
+            if (published.get((int) (next & mask)) == next) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        writerParked = true;
+        if (published.get((int) (next & mask)) != next) {
+            // Timed, so a missed unpark only costs latency
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        writerParked = false;
+    }
+
+    // Statistics
+    public long getBatchCount() { return batches.get(); }
+    public long getAppliedCount() { return applied.get(); }
+    public long getRejectedCount() { return rejected.get(); }
+    public LatencyHistogram getLatency() { return latency; }
+
+    // Applies everything submitted before the call, then stops the writer
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        long sequence = claimed.getAndIncrement();
+        shutdownSequence = sequence;
+        awaitSpace(sequence);
+        publish((int) (sequence & mask), sequence);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+// Point-in-time image of a Ledger: every account's id, holder and balance, the id
+// counter, and the journal sequence and position the image corresponds to. Loading the
+// newest image and replaying only the journal after that position rebuilds the ledger.
+//
+//   file = magic "ACSN" | version (u16) | sequence (i64) | position (i64)
+//          | last account id (i32) | count (i32) | (id (i32) | balance cents (i64) | holder (UTF))*
+//          | CRC32C of everything before it (i32)
+//
+// Files are named snapshot-<sequence as 16 hex digits> and written to a temporary file
+// that is synced and then renamed, so a snapshot file is either complete or absent. The
+// directory is synced after the rename so the new name survives a crash too.
+class LedgerSnapshot {
+    static final int MAGIC = 0x4143534E; // "ACSN"
+    static final short VERSION = 1;
+    private static final String PREFIX = "snapshot-";
+
+    final long sequence;
+    final long position;
+    final int lastAccountId;
+    final int[] ids;
+    final long[] balances;
+    final String[] holders;
+
+    LedgerSnapshot(long sequence, long position, int lastAccountId, int[] ids, long[] balances, String[] holders) {
+        this.sequence = sequence;
+        this.position = position;
+        this.lastAccountId = lastAccountId;
+        this.ids = ids;
+        this.balances = balances;
+        this.holders = holders;
+    }
+
+    Path write(Path directory) throws IOException {
+        Path file = directory.resolve(String.format("%s%016x", PREFIX, sequence));
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        CRC32C crc = new CRC32C();
+        try (OutputStream stream = Files.newOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 64 * 1024))) {
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            checked.writeInt(MAGIC);
+            checked.writeShort(VERSION);
+            checked.writeLong(sequence);
+            checked.writeLong(position);
+            checked.writeInt(lastAccountId);
+            checked.writeInt(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                checked.writeInt(ids[i]);
+                checked.writeLong(balances[i]);
+                checked.writeUTF(holders[i]);
+            }
+            checked.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        try {
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(directory);
+        return file;
+    }
+
+    // Best effort: not every platform can open a directory for syncing
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // The rename is still atomic, just not yet known to be durable
+        }
+    }
+
+    static LedgerSnapshot read(Path file) throws IOException {
+        CRC32C crc = new CRC32C();
+        try (InputStream stream = Files.newInputStream(file);
+             DataInputStream raw = new DataInputStream(new BufferedInputStream(stream, 64 * 1024))) {
+            DataInputStream in = new DataInputStream(new CheckedInputStream(raw, crc));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a ledger snapshot: " + file);
+            }
+            if (in.readShort() > VERSION) {
+                throw new IOException("Unsupported ledger snapshot version in " + file);
+            }
+            long sequence = in.readLong();
+            long position = in.readLong();
+            int lastAccountId = in.readInt();
+            int count = in.readInt();
+            if (count < 0) {
+                throw new IOException("Corrupt ledger snapshot: " + file);
+            }
+            int[] ids = new int[count];
+            long[] balances = new long[count];
+            String[] holders = new String[count];
+            for (int i = 0; i < count; i++) {
+                ids[i] = in.readInt();
+                balances[i] = in.readLong();
+                holders[i] = in.readUTF();
+            }
+            int expected = (int) crc.getValue();
+            if (raw.readInt() != expected) {
+                throw new IOException("Ledger snapshot checksum mismatch: " + file);
+            }
+            return new LedgerSnapshot(sequence, position, lastAccountId, ids, balances, holders);
+        }
+    }
+
+    // The newest snapshot that reads back intact, or null; damaged ones are skipped
+    static LedgerSnapshot readNewest(Path directory) throws IOException {
+        List<Path> files = list(directory);
+        for (int i = files.size() - 1; i >= 0; i--) {
+            try {
+                return read(files.get(i));
+            } catch (IOException e) {
+                System.err.println("Skipping snapshot " + files.get(i) + ": " + e.getMessage());
+            }
+        }
+        return null;
+    }
+
+    // Deletes all but the newest keep snapshots, and leftover temporary files
+    static void prune(Path directory, int keep) throws IOException {
+        List<Path> files = list(directory);
+        for (int i = 0; i < files.size() - keep; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+
+    // Oldest first; the fixed-width hex names sort by sequence
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                String name = path.getFileName().toString();
+                if (name.startsWith(PREFIX) && !name.endsWith(".tmp")) {
+                    files.add(path);
+                }
+            }
+        }
+        files.sort(null);
+        return files;
+    }
+}
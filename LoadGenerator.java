@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Load generator for SimpleWebServer (or any server on this machine).
+//
+//   java LoadGenerator --mode=open --rate=2000 --duration=30 --mix=/hello:5,/time:3,/echo:1,/file/a.txt:1
+//   java LoadGenerator --mode=closed --connections=200 --duration=30
+//
+// Open loop sends at a fixed arrival rate no matter how the server copes, and measures
+// latency from when each request was *supposed* to start, so a stalled server can't hide
+// its queueing delay (coordinated omission). Closed loop keeps N requests outstanding;
+// pass --expected-interval-ms to back-fill the samples a stall suppressed.
+// Open loop never has more than --max-in-flight requests outstanding, since each costs
+// the client a connection: the rest wait in a queue and are still timed from their
+// scheduled start, and any left unsent at the end count as failed samples.
+public class LoadGenerator {
+
+    enum Mode { OPEN, CLOSED }
+
+    static class Config {
+        URI baseUri = URI.create("http://localhost:8080");
+        Mode mode = Mode.CLOSED;
+        int rate = 1000;
+        int connections = 64;
+        int maxInFlight = 1000;
+        Duration duration = Duration.ofSeconds(10);
+        Duration warmup = Duration.ofSeconds(2);
+        Duration timeout = Duration.ofSeconds(5);
+        long expectedIntervalNanos;
+        int echoBytes = 256;
+        String mix = "/hello:5,/time:3,/echo:1,/:1";
+
+        static Config parse(String[] args) {
+            Config config = new Config();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "url": config.baseUri = URI.create(value); break;
+                    case "mode": config.mode = Mode.valueOf(value.toUpperCase()); break;
+                    case "rate": config.rate = Integer.parseInt(value); break;
+                    case "connections": config.connections = Integer.parseInt(value); break;
+                    case "max-in-flight": config.maxInFlight = Integer.parseInt(value); break;
+                    case "duration": config.duration = Duration.ofSeconds(Long.parseLong(value)); break;
+                    case "warmup": config.warmup = Duration.ofSeconds(Long.parseLong(value)); break;
+                    case "timeout": config.timeout = Duration.ofSeconds(Long.parseLong(value)); break;
+                    case "expected-interval-ms":
+                        config.expectedIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(value));
+                        break;
+                    case "echo-bytes": config.echoBytes = Integer.parseInt(value); break;
+                    case "mix": config.mix = value; break;
+                    default: throw new IllegalArgumentException("Unknown option --" + name);
+                }
+            }
+            if (config.rate <= 0 || config.connections <= 0 || config.maxInFlight <= 0) {
+                throw new IllegalArgumentException("rate, connections and max-in-flight must be positive");
+            }
+            return config;
+        }
+    }
+
+    // One entry of the endpoint mix and the results collected for it
+    static class Target {
+        final String path;
+        final int weight;
+        final HttpRequest request;
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        // Real requests; latency may also hold back-filled samples in closed mode
+        final LongAdder requests = new LongAdder();
+        final LongAdder errors = new LongAdder();
+
+        Target(String path, int weight, HttpRequest request) {
+            this.path = path;
+            this.weight = weight;
+            this.request = request;
+        }
+    }
+
+    static class Pending {
+        final Target target;
+        final long intendedStart;
+
+        Pending(Target target, long intendedStart) {
+            this.target = target;
+            this.intendedStart = intendedStart;
+        }
+    }
+
+    private final Config config;
+    private final List<Target> targets = new ArrayList<>();
+    private final int[] cumulativeWeights;
+    private final HttpClient client;
+    private final ExecutorService clientExecutor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Open loop requests due while --max-in-flight were outstanding, oldest first
+    private final Queue<Pending> backlog = new ConcurrentLinkedQueue<>();
+    private final LongAdder delayed = new LongAdder();
+    private final Map<String, LongAdder> errorCauses = new ConcurrentSkipListMap<>();
+    private volatile long measureFromNanos;
+
+    public LoadGenerator(Config config) throws IOException {
+        this.config = config;
+        requireLocal(config.baseUri);
+
+        byte[] echoBody = new byte[config.echoBytes];
+        Arrays.fill(echoBody, (byte) 'x');
+        for (String entry : config.mix.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            String path = colon > 0 ? entry.substring(0, colon).trim() : entry.trim();
+            int weight = colon > 0 ? Integer.parseInt(entry.substring(colon + 1).trim()) : 1;
+            HttpRequest.Builder builder = HttpRequest.newBuilder(config.baseUri.resolve(path))
+                    .timeout(config.timeout);
+            if (path.startsWith("/echo")) {
+                builder.POST(HttpRequest.BodyPublishers.ofByteArray(echoBody));
+            } else {
+                builder.GET();
+            }
+            targets.add(new Target(path, weight, builder.build()));
+        }
+        cumulativeWeights = new int[targets.size()];
+        int total = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            total += targets.get(i).weight;
+            cumulativeWeights[i] = total;
+        }
+
+        clientExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(config.timeout)
+                .executor(clientExecutor)
+                .build();
+    }
+
+    // The generator can produce a lot of traffic; keep it pointed at this machine
+    private static void requireLocal(URI uri) throws IOException {
+        InetAddress address = InetAddress.getByName(uri.getHost());
+        if (!address.isLoopbackAddress()) {
+            throw new IllegalArgumentException("Refusing to load non-local host " + uri.getHost());
+        }
+    }
+
+    private Target pickTarget() {
+        int roll = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (roll < cumulativeWeights[i]) {
+                return targets.get(i);
+            }
+        }
+        return targets.get(targets.size() - 1);
+    }
+
+    public void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFromNanos = start + config.warmup.toNanos();
+        long end = measureFromNanos + config.duration.toNanos();
+
+        if (config.mode == Mode.OPEN) {
+            runOpenLoop(start, end);
+        } else {
+            runClosedLoop(end);
+        }
+        clientExecutor.shutdown();
+        report(config.duration.toNanos());
+    }
+
+    // Issue requests on a fixed schedule, whether or not earlier ones have finished
+    private void runOpenLoop(long start, long end) throws InterruptedException {
+        long interval = TimeUnit.SECONDS.toNanos(1) / config.rate;
+        for (long intended = start; intended < end; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            Target target = pickTarget();
+            if (inFlight.get() >= config.maxInFlight || !backlog.isEmpty()) {
+                if (intended >= measureFromNanos) {
+                    delayed.increment();
+                }
+                backlog.add(new Pending(target, intended));
+                drainBacklog();
+                continue;
+            }
+            send(target, intended, null);
+        }
+        awaitInFlight();
+        failUnsent();
+    }
+
+    // Sends queued requests while there is room; called by the scheduler and on every completion
+    private void drainBacklog() {
+        while (inFlight.get() < config.maxInFlight) {
+            Pending pending = backlog.poll();
+            if (pending == null) {
+                return;
+            }
+            send(pending.target, pending.intendedStart, null);
+        }
+    }
+
+    // Requests still queued after the run never got a response: a failure that took
+    // at least as long as they have waited
+    private void failUnsent() {
+        long now = System.nanoTime();
+        Pending pending;
+        while ((pending = backlog.poll()) != null) {
+            if (pending.intendedStart >= measureFromNanos) {
+                pending.target.requests.increment();
+                pending.target.errors.increment();
+                pending.target.latency.record(now - pending.intendedStart);
+                countError("Not sent (max-in-flight)");
+            }
+        }
+    }
+
+    // Keep exactly `connections` requests outstanding until the deadline
+    private void runClosedLoop(long end) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(config.connections);
+        for (int i = 0; i < config.connections; i++) {
+            startUser(end, done);
+        }
+        done.await();
+    }
+
+    private void startUser(long end, CountDownLatch done) {
+        long now = System.nanoTime();
+        if (now >= end) {
+            done.countDown();
+            return;
+        }
+        send(pickTarget(), now, () -> startUser(end, done));
+    }
+
+    private void send(Target target, long intendedStart, Runnable next) {
+        inFlight.incrementAndGet();
+        long sentAt = System.nanoTime();
+        client.sendAsync(target.request, HttpResponse.BodyHandlers.discarding())
+              .whenComplete((response, error) -> {
+                  long now = System.nanoTime();
+                  inFlight.decrementAndGet();
+                  if (intendedStart >= measureFromNanos) {
+                      target.requests.increment();
+                      if (error != null) {
+                          target.errors.increment();
+                          Throwable cause = error.getCause() != null ? error.getCause() : error;
+                          countError(cause.getClass().getSimpleName());
+                      } else if (response.statusCode() >= 400) {
+                          target.errors.increment();
+                          countError("HTTP " + response.statusCode());
+                      }
+                      target.serviceTime.record(now - sentAt);
+                      if (config.mode == Mode.CLOSED) {
+                          target.latency.recordCorrected(now - intendedStart, config.expectedIntervalNanos);
+                      } else {
+                          target.latency.record(now - intendedStart);
+                      }
+                  }
+                  if (next != null) {
+                      next.run();
+                  } else {
+                      drainBacklog();
+                  }
+              });
+    }
+
+    private void countError(String cause) {
+        errorCauses.computeIfAbsent(cause, c -> new LongAdder()).increment();
+    }
+
+    private void awaitInFlight() throws InterruptedException {
+        long deadline = System.nanoTime() + config.timeout.toNanos() * 2;
+        while ((inFlight.get() > 0 || !backlog.isEmpty()) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void report(long measuredNanos) {
+        LatencyHistogram allLatency = new LatencyHistogram();
+        LatencyHistogram allService = new LatencyHistogram();
+        long requests = 0;
+        long errors = 0;
+        for (Target target : targets) {
+            allLatency.add(target.latency);
+            allService.add(target.serviceTime);
+            requests += target.requests.sum();
+            errors += target.errors.sum();
+        }
+        double seconds = measuredNanos / 1e9;
+
+        System.out.println("\n=== Load Test Report ===");
+        System.out.println("Target:      " + config.baseUri);
+        System.out.println("Mode:        " + config.mode.name().toLowerCase()
+                + (config.mode == Mode.OPEN ? " (" + config.rate + " req/s)" : " (" + config.connections + " connections)"));
+        System.out.printf("Duration:    %.1fs measured after %ds warmup%n", seconds, config.warmup.getSeconds());
+        System.out.printf("Requests:    %d (%.1f req/s)%n", requests, requests / seconds);
+        System.out.printf("Errors:      %d (%.2f%%)%n", errors, requests == 0 ? 0.0 : 100.0 * errors / requests);
+        if (delayed.sum() > 0) {
+            System.out.println("Delayed:     " + delayed.sum() + " scheduled requests queued for a free slot"
+                    + " (--max-in-flight " + config.maxInFlight + " reached; the server is not keeping up)");
+        }
+        if (inFlight.get() > 0) {
+            System.out.println("Unfinished:  " + inFlight.get() + " requests still outstanding at the end");
+        }
+
+        String latencyLabel = config.mode == Mode.OPEN || config.expectedIntervalNanos > 0
+                ? "latency (corrected)" : "latency";
+        System.out.printf("%n%-24s %8s %8s %9s %9s %9s %9s %9s%n",
+                "endpoint", "count", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        for (Target target : targets) {
+            printRow(target.path, target.latency, target.requests.sum(), target.errors.sum());
+        }
+        printRow("all: " + latencyLabel, allLatency, requests, errors);
+        printRow("all: service time", allService, requests, errors);
+
+        if (!errorCauses.isEmpty()) {
+            System.out.println("\nErrors by cause:");
+            errorCauses.forEach((cause, count) -> System.out.printf("  %-40s %d%n", cause, count.sum()));
+        }
+    }
+
+    // The histogram gives the percentiles only; count is the number of real requests
+    private static void printRow(String label, LatencyHistogram histogram, long count, long errors) {
+        System.out.printf("%-24s %8d %8d %9.3f %9.3f %9.3f %9.3f %9.3f%n",
+                label, count, errors,
+                histogram.getPercentileNanos(50) / 1e6, histogram.getPercentileNanos(90) / 1e6,
+                histogram.getPercentileNanos(99) / 1e6, histogram.getPercentileNanos(99.9) / 1e6,
+                histogram.getMaxNanos() / 1e6);
+    }
+
+    public static void main(String[] args) {
+        try {
+            new LoadGenerator(Config.parse(args)).run();
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Load generator error: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
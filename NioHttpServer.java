@@ -0,0 +1,1274 @@
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpPrincipal;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// Alternative front end for SimpleWebServer built directly on NIO selectors.
+// A handful of event-loop threads own all socket I/O: they parse requests,
+// keep connections alive and pipeline requests, while handlers run on the same
+// Executor the JDK server uses. Handlers see a regular HttpExchange, so every
+// existing HttpHandler works unchanged on either engine.
+//
+// Request bodies are streamed: a handler is dispatched as soon as the headers are in
+// and reads the body through a small per-request buffer that the loop refills, so
+// any size limit is the handler's to enforce and memory per connection stays fixed.
+// Reading from the socket pauses while that buffer is full. Responses are copied
+// into pooled direct buffers, which the loop writes without another copy.
+public class NioHttpServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+    // Request body bytes received ahead of the handler reading them
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    // Pipelined requests queued per connection before we stop reading from it
+    private static final int MAX_PIPELINED = 16;
+    // Response bytes a handler may have queued before it blocks for the socket to drain
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+    private static final int RESPONSE_BUFFER_SIZE = 8 * 1024;
+    private static final int SEND_BUFFER_SIZE = 16 * 1024;
+    // Free direct send buffers kept per event loop
+    private static final int POOLED_SEND_BUFFERS = 256;
+
+    // A request head must arrive within HEADER_TIMEOUT of its first byte; otherwise a
+    // connection may go IDLE_TIMEOUT without progress while we wait on the client
+    private static final long HEADER_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("server.nio.headerTimeoutMs", 10_000));
+    private static final long IDLE_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("server.nio.idleTimeoutMs", 60_000));
+    private static final long SWEEP_MILLIS = 1000;
+
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final InetSocketAddress address;
+    private final int loopCount;
+    private final List<NioContext> contexts = new ArrayList<>();
+    private Executor executor = Runnable::run;
+
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private Thread acceptor;
+    private volatile boolean running;
+    private volatile CachedDate cachedDate = new CachedDate(0, "");
+
+    public NioHttpServer(InetSocketAddress address, int loopCount) {
+        if (loopCount < 1) {
+            throw new IllegalArgumentException("Need at least one event loop");
+        }
+        this.address = address;
+        this.loopCount = loopCount;
+    }
+
+    // Same prefix semantics as HttpServer: the longest matching context wins
+    public synchronized HttpContext createContext(String path, HttpHandler handler) {
+        NioContext context = new NioContext(path, handler);
+        contexts.add(context);
+        contexts.sort((a, b) -> b.getPath().length() - a.getPath().length());
+        return context;
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(address, 1024);
+        running = true;
+
+        loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {
+            // Shutting down anyway
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                EventLoop loop = loops[next++ % loops.length];
+                loop.execute(() -> loop.register(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private synchronized NioContext findContext(String path) {
+        for (NioContext context : contexts) {
+            if (path.startsWith(context.getPath())) {
+                return context;
+            }
+        }
+        return null;
+    }
+
+    private String httpDate() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = cachedDate;
+        if (date.second != second) {
+            date = new CachedDate(second, HTTP_DATE.format(Instant.ofEpochSecond(second)));
+            cachedDate = date;
+        }
+        return date.text;
+    }
+
+    private static class CachedDate {
+        final long second;
+        final String text;
+
+        CachedDate(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    // One selector thread. All Connection state except the pending-output counter
+    // is only touched from here; other threads hand work over through execute().
+    private class EventLoop implements Runnable {
+        final Selector selector;
+        // Shared by every connection on this loop; data is copied out right after each read
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        final ArrayBlockingQueue<ByteBuffer> sendBuffers = new ArrayBlockingQueue<>(POOLED_SEND_BUFFERS);
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        Thread thread;
+        long lastSweep = System.nanoTime();
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        // Called from handler threads
+        ByteBuffer acquireBuffer() {
+            ByteBuffer buffer = sendBuffers.poll();
+            return buffer != null ? buffer.clear() : ByteBuffer.allocateDirect(SEND_BUFFER_SIZE);
+        }
+
+        void releaseBuffer(ByteBuffer buffer) {
+            // Interim and error responses are small heap buffers; only pooled ones go back
+            if (buffer.isDirect() && buffer.capacity() == SEND_BUFFER_SIZE) {
+                sendBuffers.offer(buffer);
+            }
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(this, channel, key));
+            } catch (IOException e) {
+                closeQuietly(channel);
+            }
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            while (running) {
+                try {
+                    selector.select(SWEEP_MILLIS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                    long now = System.nanoTime();
+                    if (now - lastSweep >= TimeUnit.MILLISECONDS.toNanos(SWEEP_MILLIS)) {
+                        lastSweep = now;
+                        closeExpired(now);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Event loop error: " + e.getMessage());
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            closeQuietly(selector);
+        }
+
+        // Cancelled keys stay in the key set until the next select, so closing here is safe
+        private void closeExpired(long now) {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection.isExpired(now)) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private static class Request {
+        String method;
+        String target;
+        String protocol;
+        final Headers headers = new Headers();
+        RequestBody body;
+        boolean keepAlive;
+        boolean dispatched;
+    }
+
+    private enum ParseState { HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_DATA_END, TRAILERS }
+
+    private class Connection {
+        final EventLoop loop;
+        final SocketChannel channel;
+        final SelectionKey key;
+
+        // Unparsed input: bytes in[start, end)
+        byte[] in = new byte[4096];
+        int start;
+        int end;
+        int scanned;
+
+        ParseState state = ParseState.HEADERS;
+        // The request whose head or body is being parsed; already queued once its head is in
+        Request current;
+        long bodyRemaining;
+        // The current body's buffer is full; reading resumes when the handler catches up
+        boolean bodyBlocked;
+
+        final ArrayDeque<Request> pipeline = new ArrayDeque<>();
+        boolean busy;
+        final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        // Error response owed once the running handler's response is out
+        ByteBuffer pendingReject;
+        boolean closeAfterWrite;
+        boolean closed;
+
+        // Deadlines (System.nanoTime)
+        long lastActivity = System.nanoTime();
+        long headerStarted;
+        boolean headerPending;
+
+        // Written by handler threads, drained by the loop
+        long pendingOutput;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable() {
+            ByteBuffer buffer = loop.readBuffer;
+            buffer.clear();
+            int n;
+            try {
+                n = channel.read(buffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                // Client is done sending; finish what is queued, then close
+                closeAfterWrite = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                if (current != null && current.body != null) {
+                    current.body.fail(new IOException("Connection closed before the request body was complete"));
+                }
+                if (!busy && pipeline.isEmpty() && outbound.isEmpty()) {
+                    close();
+                }
+                return;
+            }
+            lastActivity = System.nanoTime();
+            buffer.flip();
+            append(buffer);
+            process();
+        }
+
+        // Called on the loop once a full body buffer has room again
+        void resumeBody() {
+            if (closed || !bodyBlocked) {
+                return;
+            }
+            bodyBlocked = false;
+            // The time spent waiting on our handler doesn't count against the client
+            lastActivity = System.nanoTime();
+            process();
+        }
+
+        private void process() {
+            try {
+                parse();
+            } catch (BadRequest e) {
+                rejectAndClose(e.status, e.getMessage());
+                return;
+            }
+            updateReadInterest();
+            dispatchNext();
+        }
+
+        // Read while there is somewhere to put the input
+        private void updateReadInterest() {
+            if (closed) {
+                return;
+            }
+            boolean wanted = !closeAfterWrite && !bodyBlocked && pipeline.size() < MAX_PIPELINED;
+            int ops = key.interestOps();
+            if (wanted != ((ops & SelectionKey.OP_READ) != 0)) {
+                key.interestOps(wanted ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // Only progress the client owes us is timed; a slow handler or a full body
+        // buffer is our own doing
+        boolean isExpired(long now) {
+            if (bodyBlocked || busy && current == null && outbound.isEmpty()) {
+                return false;
+            }
+            if (headerPending) {
+                return now - headerStarted > HEADER_TIMEOUT_NANOS;
+            }
+            return now - lastActivity > IDLE_TIMEOUT_NANOS;
+        }
+
+        private void append(ByteBuffer buffer) {
+            int n = buffer.remaining();
+            if (end + n > in.length) {
+                int live = end - start;
+                if (live + n <= in.length) {
+                    System.arraycopy(in, start, in, 0, live);
+                } else {
+                    byte[] bigger = new byte[Math.max(in.length * 2, live + n)];
+                    System.arraycopy(in, start, bigger, 0, live);
+                    in = bigger;
+                }
+                scanned -= start;
+                start = 0;
+                end = live;
+            }
+            buffer.get(in, end, n);
+            end += n;
+        }
+
+        private void parse() throws BadRequest {
+            while (!bodyBlocked) {
+                switch (state) {
+                    case HEADERS: {
+                        int headerEnd = indexOf(CRLFCRLF, Math.max(start, scanned - 3));
+                        if (headerEnd < 0) {
+                            scanned = end;
+                            if (end > start && !headerPending) {
+                                headerPending = true;
+                                headerStarted = System.nanoTime();
+                            }
+                            if (end - start > MAX_HEADER_BYTES) {
+                                throw new BadRequest(431, "Request header too large");
+                            }
+                            return;
+                        }
+                        headerPending = false;
+                        current = parseHead(new String(in, start, headerEnd - start, StandardCharsets.ISO_8859_1));
+                        start = headerEnd + 4;
+                        scanned = start;
+                        if ("100-continue".equalsIgnoreCase(current.headers.getFirst("Expect"))
+                                && !busy && pipeline.isEmpty()) {
+                            // Nothing else is being written, so the interim response can't interleave
+                            outbound.add(ByteBuffer.wrap(CONTINUE));
+                            synchronized (this) {
+                                pendingOutput += CONTINUE.length;
+                            }
+                            flush();
+                        }
+                        String transferEncoding = current.headers.getFirst("Transfer-Encoding");
+                        String contentLength = current.headers.getFirst("Content-Length");
+                        if (transferEncoding != null && transferEncoding.toLowerCase().contains("chunked")) {
+                            current.body = new RequestBody(this, BODY_BUFFER_SIZE);
+                            state = ParseState.CHUNK_SIZE;
+                        } else if (contentLength != null) {
+                            try {
+                                bodyRemaining = Long.parseLong(contentLength.trim());
+                            } catch (NumberFormatException e) {
+                                throw new BadRequest(400, "Bad Content-Length");
+                            }
+                            if (bodyRemaining < 0) {
+                                throw new BadRequest(400, "Bad Content-Length");
+                            }
+                            if (bodyRemaining > 0) {
+                                current.body = new RequestBody(this, (int) Math.min(BODY_BUFFER_SIZE, bodyRemaining));
+                                state = ParseState.BODY;
+                            }
+                        }
+                        // The handler can start on the head; the body follows as it arrives
+                        pipeline.add(current);
+                        if (current.body == null) {
+                            complete();
+                        }
+                        break;
+                    }
+                    case BODY: {
+                        feedBody();
+                        if (bodyRemaining > 0) {
+                            return;
+                        }
+                        complete();
+                        break;
+                    }
+                    case CHUNK_SIZE: {
+                        int lineEnd = indexOf(CRLF, start);
+                        if (lineEnd < 0) {
+                            if (end - start > MAX_HEADER_BYTES) {
+                                throw new BadRequest(400, "Bad chunk header");
+                            }
+                            return;
+                        }
+                        String line = new String(in, start, lineEnd - start, StandardCharsets.ISO_8859_1);
+                        int extension = line.indexOf(';');
+                        try {
+                            bodyRemaining = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+                        } catch (NumberFormatException e) {
+                            throw new BadRequest(400, "Bad chunk size");
+                        }
+                        if (bodyRemaining < 0) {
+                            throw new BadRequest(400, "Bad chunk size");
+                        }
+                        start = lineEnd + 2;
+                        state = bodyRemaining == 0 ? ParseState.TRAILERS : ParseState.CHUNK_DATA;
+                        break;
+                    }
+                    case CHUNK_DATA: {
+                        feedBody();
+                        if (bodyRemaining > 0) {
+                            return;
+                        }
+                        state = ParseState.CHUNK_DATA_END;
+                        break;
+                    }
+                    case CHUNK_DATA_END: {
+                        if (end - start < 2) {
+                            return;
+                        }
+                        if (in[start] != '\r' || in[start + 1] != '\n') {
+                            throw new BadRequest(400, "Bad chunk terminator");
+                        }
+                        start += 2;
+                        state = ParseState.CHUNK_SIZE;
+                        break;
+                    }
+                    case TRAILERS: {
+                        int lineEnd = indexOf(CRLF, start);
+                        if (lineEnd < 0) {
+                            return;
+                        }
+                        boolean last = lineEnd == start;
+                        start = lineEnd + 2;
+                        if (last) {
+                            complete();
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException(state.name());
+                }
+            }
+        }
+
+        // Hands buffered body bytes to the current request, as many as its buffer takes
+        private void feedBody() {
+            int available = (int) Math.min(bodyRemaining, end - start);
+            if (available == 0) {
+                return;
+            }
+            int n = current.body.offer(in, start, available);
+            start += n;
+            bodyRemaining -= n;
+            if (n < available) {
+                bodyBlocked = true;
+            }
+        }
+
+        private void complete() {
+            if (current.body != null) {
+                current.body.finish();
+            }
+            current = null;
+            state = ParseState.HEADERS;
+            scanned = start;
+        }
+
+        private int indexOf(byte[] pattern, int from) {
+            outer:
+            for (int i = from; i <= end - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (in[i + j] != pattern[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        private Request parseHead(String head) throws BadRequest {
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+                throw new BadRequest(400, "Bad request line");
+            }
+            Request request = new Request();
+            request.method = requestLine[0];
+            request.target = requestLine[1];
+            request.protocol = requestLine[2];
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new BadRequest(400, "Bad header line");
+                }
+                request.headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            String connection = request.headers.getFirst("Connection");
+            request.keepAlive = "HTTP/1.1".equals(request.protocol)
+                    ? !"close".equalsIgnoreCase(connection)
+                    : "keep-alive".equalsIgnoreCase(connection);
+            return request;
+        }
+
+        // Requests on a connection are handled one at a time, so pipelined
+        // responses go out in request order
+        void dispatchNext() {
+            if (busy || closed || pipeline.isEmpty()) {
+                return;
+            }
+            busy = true;
+            Request request = pipeline.poll();
+            request.dispatched = true;
+            updateReadInterest();
+            NioExchange exchange;
+            try {
+                exchange = new NioExchange(this, request);
+            } catch (IllegalArgumentException e) {
+                busy = false;
+                request.dispatched = false;
+                // This request is next in order; nothing queued behind it gets an answer
+                pipeline.clear();
+                rejectAndClose(400, "Bad request target");
+                return;
+            }
+            executor.execute(() -> exchange.run());
+        }
+
+        // Called from handler threads; blocks while too much output is waiting
+        void send(ByteBuffer data) throws IOException {
+            synchronized (this) {
+                // The loop thread itself must never wait for its own progress
+                while (pendingOutput > MAX_PENDING_OUTPUT && !closed && Thread.currentThread() != loop.thread) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while sending response");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                pendingOutput += data.remaining();
+            }
+            loop.execute(() -> {
+                outbound.add(data);
+                flush();
+            });
+        }
+
+        void responseComplete(boolean close) {
+            loop.execute(() -> {
+                busy = false;
+                lastActivity = System.nanoTime();
+                if (close) {
+                    closeAfterWrite = true;
+                    pipeline.clear();
+                    pendingReject = null;
+                }
+                if (pendingReject != null && pipeline.isEmpty()) {
+                    queue(pendingReject);
+                    pendingReject = null;
+                }
+                if (closeAfterWrite && outbound.isEmpty() && pipeline.isEmpty()) {
+                    close();
+                    return;
+                }
+                dispatchNext();
+            });
+        }
+
+        private void queue(ByteBuffer response) {
+            synchronized (this) {
+                pendingOutput += response.remaining();
+            }
+            outbound.add(response);
+            flush();
+        }
+
+        void flush() {
+            if (closed) {
+                return;
+            }
+            try {
+                ByteBuffer[] batch = new ByteBuffer[16];
+                while (!outbound.isEmpty()) {
+                    // Gathering write of up to 16 queued buffers
+                    int n = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        batch[n++] = buffer;
+                        if (n == batch.length) {
+                            break;
+                        }
+                    }
+                    long written = channel.write(batch, 0, n);
+                    if (written > 0) {
+                        lastActivity = System.nanoTime();
+                    }
+                    synchronized (this) {
+                        pendingOutput -= written;
+                        notifyAll();
+                    }
+                    while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                        loop.releaseBuffer(outbound.poll());
+                    }
+                    if (!outbound.isEmpty() && written == 0) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (closeAfterWrite && !busy && pipeline.isEmpty()) {
+                    close();
+                }
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Requests received intact before the bad input are still answered; the error
+        // response follows the last of them, then the connection closes
+        private void rejectAndClose(int status, String message) {
+            closeAfterWrite = true;
+            updateReadInterest();
+            boolean answered = false;
+            if (current != null) {
+                if (current.body != null) {
+                    current.body.fail(new IOException(message));
+                }
+                // A handler that already has this request answers it, failing on the body
+                answered = current.dispatched;
+                pipeline.remove(current);
+                current = null;
+            }
+            if (answered) {
+                if (!busy && outbound.isEmpty()) {
+                    close();
+                }
+                return;
+            }
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            String head = "HTTP/1.1 " + status + " " + reasonPhrase(status) + "\r\n"
+                    + "Date: " + httpDate() + "\r\n"
+                    + "Server: Java-HTTP-Server/1.0\r\n"
+                    + "Content-Type: text/plain; charset=utf-8\r\n"
+                    + "Content-Length: " + body.length + "\r\n"
+                    + "Connection: close\r\n\r\n";
+            ByteBuffer response = ByteBuffer.allocate(head.length() + body.length);
+            response.put(head.getBytes(StandardCharsets.ISO_8859_1)).put(body).flip();
+            if (busy || !pipeline.isEmpty()) {
+                // Must not interleave with other responses; responseComplete sends it
+                pendingReject = response;
+                dispatchNext();
+            } else {
+                queue(response);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            if (current != null && current.body != null) {
+                current.body.fail(new IOException("Connection closed"));
+            }
+            key.cancel();
+            closeQuietly(channel);
+            for (ByteBuffer buffer : outbound) {
+                loop.releaseBuffer(buffer);
+            }
+            outbound.clear();
+        }
+    }
+
+    // Body of one request, filled by the loop and read by the handler. The loop offers
+    // what fits; once it had to hold bytes back, the read that makes room schedules
+    // resumeBody(). After the exchange is closed, the rest of the body is discarded.
+    private static class RequestBody extends InputStream {
+        private final Connection connection;
+        private final byte[] ring;
+        private int head;
+        private int size;
+        private boolean stalled;
+        private boolean finished;
+        private boolean discarding;
+        private IOException failure;
+
+        RequestBody(Connection connection, int capacity) {
+            this.connection = connection;
+            this.ring = new byte[capacity];
+        }
+
+        // Loop side: copies as much as fits and returns how many bytes that was
+        synchronized int offer(byte[] b, int off, int len) {
+            if (discarding) {
+                return len;
+            }
+            int n = Math.min(len, ring.length - size);
+            int tail = (head + size) % ring.length;
+            int first = Math.min(n, ring.length - tail);
+            System.arraycopy(b, off, ring, tail, first);
+            System.arraycopy(b, off + first, ring, 0, n - first);
+            size += n;
+            if (n < len) {
+                stalled = true;
+            }
+            notifyAll();
+            return n;
+        }
+
+        synchronized void finish() {
+            finished = true;
+            notifyAll();
+        }
+
+        synchronized void fail(IOException e) {
+            if (!finished) {
+                failure = e;
+                notifyAll();
+            }
+        }
+
+        synchronized void discard() {
+            discarding = true;
+            size = 0;
+            resumeIfStalled();
+            notifyAll();
+        }
+
+        private void resumeIfStalled() {
+            if (stalled) {
+                stalled = false;
+                connection.loop.execute(connection::resumeBody);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (len == 0) {
+                return 0;
+            }
+            while (size == 0) {
+                if (failure != null) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                if (finished || discarding) {
+                    return -1;
+                }
+                if (Thread.currentThread() == connection.loop.thread) {
+                    // Nothing else would fill the buffer while we wait
+                    throw new IOException("Request body not received yet; set an executor to read bodies");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading request body");
+                }
+            }
+            int n = Math.min(len, size);
+            int first = Math.min(n, ring.length - head);
+            System.arraycopy(ring, head, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            head = (head + n) % ring.length;
+            size -= n;
+            resumeIfStalled();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() { return size; }
+
+        @Override
+        public void close() {
+            discard();
+        }
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] CRLFCRLF = {'\r', '\n', '\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        BadRequest(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    // HttpExchange backed by a parsed request and a Connection's outbound queue
+    private class NioExchange extends HttpExchange {
+        private final Connection connection;
+        private final Request request;
+        private final URI uri;
+        private final NioContext context;
+        private final Headers responseHeaders = new Headers();
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final ResponseStream rawOut = new ResponseStream();
+        private InputStream in;
+        private OutputStream out;
+        private int responseCode = -1;
+        private boolean closeConnection;
+
+        NioExchange(Connection connection, Request request) {
+            this.connection = connection;
+            this.request = request;
+            this.uri = URI.create(request.target);
+            this.context = findContext(uri.getPath() == null ? "/" : uri.getPath());
+            this.in = request.body != null ? request.body : new ByteArrayInputStream(EMPTY);
+            this.out = rawOut;
+            this.closeConnection = !request.keepAlive;
+        }
+
+        void run() {
+            try {
+                if (context == null) {
+                    responseHeaders.set("Content-Type", "text/plain; charset=utf-8");
+                    byte[] body = "No context found for request".getBytes(StandardCharsets.UTF_8);
+                    sendResponseHeaders(404, body.length);
+                    out.write(body);
+                } else {
+                    context.getHandler().handle(this);
+                }
+            } catch (Throwable t) {
+                if (responseCode < 0) {
+                    try {
+                        responseHeaders.clear();
+                        sendResponseHeaders(500, -1);
+                    } catch (IOException ignored) {
+                        // Connection is gone; close below
+                    }
+                }
+                // Whatever was sent may be incomplete, so don't reuse the connection
+                closeConnection = true;
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public Headers getRequestHeaders() { return request.headers; }
+
+        @Override
+        public Headers getResponseHeaders() { return responseHeaders; }
+
+        @Override
+        public URI getRequestURI() { return uri; }
+
+        @Override
+        public String getRequestMethod() { return request.method; }
+
+        @Override
+        public HttpContext getHttpContext() { return context; }
+
+        @Override
+        public void close() {
+            if (request.body != null) {
+                // Whatever the handler left unread is dropped so the next request can be parsed
+                request.body.discard();
+            }
+            try {
+                rawOut.close();
+            } catch (IOException e) {
+                closeConnection = true;
+                rawOut.finished = true;
+                connection.responseComplete(true);
+            }
+        }
+
+        @Override
+        public InputStream getRequestBody() { return in; }
+
+        @Override
+        public OutputStream getResponseBody() { return out; }
+
+        @Override
+        public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+            if (responseCode >= 0) {
+                throw new IOException("Headers already sent");
+            }
+            responseCode = rCode;
+            boolean head = "HEAD".equals(request.method);
+            boolean noBody = head || rCode == 204 || rCode == 304 || rCode < 200;
+            if ("close".equalsIgnoreCase(responseHeaders.getFirst("Connection"))) {
+                closeConnection = true;
+            }
+
+            if (noBody) {
+                rawOut.remaining = 0;
+                if (rCode == 204 || rCode == 304) {
+                    responseHeaders.remove("Content-Length");
+                }
+            } else if (responseLength > 0) {
+                responseHeaders.set("Content-Length", String.valueOf(responseLength));
+                rawOut.remaining = responseLength;
+            } else if (responseLength == 0) {
+                responseHeaders.set("Transfer-Encoding", "chunked");
+                rawOut.chunked = true;
+            } else {
+                responseHeaders.set("Content-Length", "0");
+                rawOut.remaining = 0;
+            }
+            if (!responseHeaders.containsKey("Date")) {
+                responseHeaders.set("Date", httpDate());
+            }
+            responseHeaders.set("Connection", closeConnection ? "close" : "keep-alive");
+
+            StringBuilder head0 = new StringBuilder(256);
+            head0.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+            for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+                for (String value : header.getValue()) {
+                    head0.append(header.getKey()).append(": ").append(value).append("\r\n");
+                }
+            }
+            head0.append("\r\n");
+            rawOut.writeHead(head0.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public InetSocketAddress getRemoteAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public int getResponseCode() { return responseCode; }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            try {
+                return (InetSocketAddress) connection.channel.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getProtocol() { return request.protocol; }
+
+        @Override
+        public Object getAttribute(String name) { return attributes.get(name); }
+
+        @Override
+        public void setAttribute(String name, Object value) { attributes.put(name, value); }
+
+        @Override
+        public void setStreams(InputStream i, OutputStream o) {
+            if (i != null) {
+                in = i;
+            }
+            if (o != null) {
+                out = o;
+            }
+        }
+
+        @Override
+        public HttpPrincipal getPrincipal() { return null; }
+
+        // Buffers body bytes and hands full buffers (with the status line and headers in
+        // front of the first one) to the connection. Applies the Content-Length limit or
+        // chunked framing chosen by sendResponseHeaders.
+        private class ResponseStream extends OutputStream {
+            private final byte[] buffer = new byte[RESPONSE_BUFFER_SIZE];
+            private int count;
+            private byte[] head;
+            long remaining = -1;
+            boolean chunked;
+            boolean finished;
+
+            void writeHead(byte[] head) {
+                this.head = head;
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                checkWritable(1);
+                if (count == buffer.length) {
+                    flushBuffer(false);
+                }
+                buffer[count++] = (byte) b;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checkWritable(len);
+                if (len >= buffer.length) {
+                    // Large writes skip the buffer but are still copied: the caller may reuse b
+                    flushBuffer(false);
+                    send(b, off, len);
+                    return;
+                }
+                if (count + len > buffer.length) {
+                    flushBuffer(false);
+                }
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+
+            private void checkWritable(int len) throws IOException {
+                if (responseCode < 0) {
+                    throw new IOException("sendResponseHeaders() must be called before writing the body");
+                }
+                if (finished) {
+                    throw new IOException("Response already finished");
+                }
+                if (!chunked) {
+                    if (len > remaining) {
+                        throw new IOException("Too many bytes for the declared Content-Length");
+                    }
+                    remaining -= len;
+                }
+            }
+
+            private void flushBuffer(boolean last) throws IOException {
+                if (count > 0 || head != null || last) {
+                    send(buffer, 0, count, last);
+                    count = 0;
+                }
+            }
+
+            private void send(byte[] b, int off, int len) throws IOException {
+                send(b, off, len, false);
+            }
+
+            // Copies [headers][chunk size line][data][chunk end][last chunk] into pooled
+            // direct buffers, sending each one as it fills
+            private void send(byte[] b, int off, int len, boolean last) throws IOException {
+                byte[] chunkLine = chunked && len > 0
+                        ? (Integer.toHexString(len) + "\r\n").getBytes(StandardCharsets.ISO_8859_1)
+                        : EMPTY;
+                byte[] chunkEnd = chunked && len > 0 ? CRLF : EMPTY;
+                byte[] trailer = chunked && last ? LAST_CHUNK : EMPTY;
+                byte[] prefix = head != null ? head : EMPTY;
+                head = null;
+
+                ByteBuffer data = put(null, prefix, 0, prefix.length);
+                data = put(data, chunkLine, 0, chunkLine.length);
+                data = put(data, b, off, len);
+                data = put(data, chunkEnd, 0, chunkEnd.length);
+                data = put(data, trailer, 0, trailer.length);
+                if (data != null) {
+                    connection.send(data.flip());
+                }
+            }
+
+            private ByteBuffer put(ByteBuffer data, byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    if (data == null) {
+                        data = connection.loop.acquireBuffer();
+                    } else if (!data.hasRemaining()) {
+                        connection.send(data.flip());
+                        data = connection.loop.acquireBuffer();
+                    }
+                    int n = Math.min(len, data.remaining());
+                    data.put(b, off, n);
+                    off += n;
+                    len -= n;
+                }
+                return data;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                flushBuffer(false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (finished) {
+                    return;
+                }
+                if (responseCode < 0) {
+                    // Handler never answered; treat it as a server error
+                    responseHeaders.clear();
+                    sendResponseHeaders(500, -1);
+                }
+                finished = true;
+                if (!chunked && remaining > 0) {
+                    // Short body: the client would wait forever for the rest
+                    closeConnection = true;
+                }
+                flushBuffer(true);
+                connection.responseComplete(closeConnection);
+            }
+        }
+    }
+
+    private class NioContext extends HttpContext {
+        private final String path;
+        private HttpHandler handler;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new ArrayList<>();
+        private Authenticator authenticator;
+
+        NioContext(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() { return handler; }
+
+        @Override
+        public void setHandler(HttpHandler handler) { this.handler = handler; }
+
+        @Override
+        public String getPath() { return path; }
+
+        // There is no com.sun HttpServer behind this engine
+        @Override
+        public HttpServer getServer() { return null; }
+
+        @Override
+        public Map<String, Object> getAttributes() { return attributes; }
+
+        @Override
+        public List<Filter> getFilters() { return filters; }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() { return authenticator; }
+    }
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "Status " + status;
+        }
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing useful to do
+        }
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Word counting spread over the fork-join pool. The file is cut into byte ranges that
+// start on an ASCII whitespace byte; such bytes never occur inside a multi-byte UTF-8
+// sequence, so every chunk decodes on its own and no word is split between chunks.
+// Each task counts into its own ByteWordCounter and the maps are merged on the way back
+// up, so the result is identical to the sequential analyzeText.
+public class ParallelWordCounter {
+    private static final int MIN_CHUNK_BYTES = 1 << 20;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    public static Map<String, Long> count(Path file) throws IOException {
+        return count(file, ForkJoinPool.commonPool());
+    }
+
+    public static Map<String, Long> count(Path file, ForkJoinPool pool) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long[] bounds = chunkBounds(channel, pool.getParallelism() * CHUNKS_PER_THREAD);
+            return pool.invoke(new CountTask(channel, bounds, 0, bounds.length - 1));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Offsets b[0]=0 < b[1] < ... < b[n]=size, each interior one on a whitespace byte
+    static long[] chunkBounds(FileChannel channel, int targetChunks) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1, Math.min(targetChunks, size / MIN_CHUNK_BYTES));
+        long[] bounds = new long[chunks + 1];
+        int count = 1;
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < chunks; i++) {
+            long from = Math.max(size * i / chunks, bounds[count - 1] + 1);
+            long boundary = nextSeparator(channel, from, size, probe);
+            if (boundary < size) {
+                bounds[count++] = boundary;
+            }
+        }
+        bounds[count++] = size;
+        return Arrays.copyOf(bounds, count);
+    }
+
+    private static long nextSeparator(FileChannel channel, long from, long size, ByteBuffer probe)
+            throws IOException {
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int n = channel.read(probe, position);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                byte b = probe.get(i);
+                if (ByteWordCounter.isSeparator(b)) {
+                    return position + i;
+                }
+            }
+            position += n;
+        }
+        return size;
+    }
+
+    // Counts the chunks [first, last) of the bounds array
+    private static class CountTask extends RecursiveTask<Map<String, Long>> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long[] bounds;
+        private final int first;
+        private final int last;
+
+        CountTask(FileChannel channel, long[] bounds, int first, int last) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Map<String, Long> compute() {
+            if (last - first == 1) {
+                try {
+                    return ByteWordCounter.count(channel, bounds[first], bounds[last]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (first + last) >>> 1;
+            CountTask right = new CountTask(channel, bounds, mid, last);
+            right.fork();
+            Map<String, Long> left = new CountTask(channel, bounds, first, mid).compute();
+            return merge(left, right.join());
+        }
+    }
+
+    // Folds the smaller map into the larger one
+    static Map<String, Long> merge(Map<String, Long> a, Map<String, Long> b) {
+        Map<String, Long> into = a.size() >= b.size() ? a : b;
+        Map<String, Long> from = into == a ? b : a;
+        from.forEach((word, count) -> into.merge(word, count, Long::sum));
+        return into;
+    }
+}
@@ -0,0 +1,202 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Request instrumentation for SimpleWebServer. Every registered handler is wrapped
+// so that request counts, status codes, bytes sent and latency are recorded per
+// endpoint; the numbers are published in Prometheus text format on /metrics.
+public class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    static class EndpointStats {
+        final LongAdder requests = new LongAdder();
+        final LongAdder bytesSent = new LongAdder();
+        final Map<Integer, LongAdder> statuses = new ConcurrentSkipListMap<>();
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicInteger inFlight = new AtomicInteger();
+
+        void recordStatus(int status) {
+            statuses.computeIfAbsent(status, s -> new LongAdder()).increment();
+        }
+    }
+
+    private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile Executor executor;
+    private volatile StaticFileCache fileCache;
+    private volatile AdmissionControl admission;
+
+    // Wraps a handler so each exchange it serves is recorded under the given endpoint name
+    public HttpHandler instrument(String endpoint, HttpHandler delegate) {
+        EndpointStats stats = endpoints.computeIfAbsent(endpoint, e -> new EndpointStats());
+        return exchange -> {
+            long start = System.nanoTime();
+            stats.inFlight.incrementAndGet();
+            inFlight.incrementAndGet();
+            CountingOutputStream counter = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(null, counter);
+            int status = 500;
+            try {
+                delegate.handle(exchange);
+                status = exchange.getResponseCode();
+            } finally {
+                stats.inFlight.decrementAndGet();
+                inFlight.decrementAndGet();
+                stats.requests.increment();
+                stats.recordStatus(status);
+                stats.bytesSent.add(counter.count);
+                stats.latency.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    public void setFileCache(StaticFileCache fileCache) {
+        this.fileCache = fileCache;
+    }
+
+    EndpointStats getEndpointStats(String endpoint) {
+        return endpoints.get(endpoint);
+    }
+
+    public HttpHandler handler() {
+        return exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.getResponseHeaders().set("Server", "Java-HTTP-Server/1.0");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        };
+    }
+
+    // Prometheus text exposition format
+    public String render() {
+        StringBuilder out = new StringBuilder(4096);
+        Map<String, EndpointStats> sorted = new TreeMap<>(endpoints);
+
+        header(out, "http_requests_total", "counter", "Requests handled, by endpoint and status code");
+        sorted.forEach((endpoint, stats) -> stats.statuses.forEach((status, count) ->
+                out.append("http_requests_total{endpoint=\"").append(endpoint)
+                   .append("\",status=\"").append(status).append("\"} ").append(count.sum()).append('\n')));
+
+        header(out, "http_response_bytes_total", "counter", "Response body bytes sent");
+        sorted.forEach((endpoint, stats) -> sample(out, "http_response_bytes_total", endpoint, stats.bytesSent.sum()));
+
+        header(out, "http_request_duration_seconds", "summary", "Time spent in the handler");
+        sorted.forEach((endpoint, stats) -> {
+            LatencyHistogram latency = stats.latency;
+            for (double q : QUANTILES) {
+                out.append("http_request_duration_seconds{endpoint=\"").append(endpoint)
+                   .append("\",quantile=\"").append(q).append("\"} ")
+                   .append(seconds(latency.getPercentileNanos(q * 100))).append('\n');
+            }
+            out.append("http_request_duration_seconds_sum{endpoint=\"").append(endpoint).append("\"} ")
+               .append(seconds(latency.getTotalNanos())).append('\n');
+            out.append("http_request_duration_seconds_count{endpoint=\"").append(endpoint).append("\"} ")
+               .append(latency.getCount()).append('\n');
+        });
+
+        header(out, "http_request_duration_seconds_max", "gauge", "Slowest request seen");
+        sorted.forEach((endpoint, stats) ->
+                sample(out, "http_request_duration_seconds_max", endpoint, seconds(stats.latency.getMaxNanos())));
+
+        header(out, "http_requests_in_flight", "gauge", "Requests currently inside a handler");
+        sorted.forEach((endpoint, stats) -> sample(out, "http_requests_in_flight", endpoint, stats.inFlight.get()));
+
+        Executor current = executor;
+        if (current instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) current;
+            gauge(out, "executor_active_threads", "Threads running a request", pool.getActiveCount());
+            gauge(out, "executor_pool_threads", "Threads in the pool", pool.getPoolSize());
+            gauge(out, "executor_queue_length", "Requests waiting for a thread", pool.getQueue().size());
+        } else {
+            // Virtual threads: one per request and no queue, so in-flight is the active count
+            gauge(out, "executor_active_threads", "Threads running a request", inFlight.get());
+            gauge(out, "executor_queue_length", "Requests waiting for a thread", 0);
+        }
+
+        AdmissionControl control = admission;
+        if (control != null) {
+            gauge(out, "admission_queued_requests", "Requests admitted and waiting for a thread",
+                    control.getQueuedCount());
+            header(out, "admission_rejected_total", "counter", "Requests answered 503, by reason");
+            out.append("admission_rejected_total{reason=\"queue_full\"} ").append(control.getRejectedQueueFull()).append('\n');
+            out.append("admission_rejected_total{reason=\"deadline\"} ").append(control.getRejectedExpired()).append('\n');
+            out.append("admission_rejected_total{reason=\"endpoint_busy\"} ").append(control.getRejectedEndpointBusy()).append('\n');
+        }
+
+        StaticFileCache cache = fileCache;
+        if (cache != null) {
+            counter(out, "static_file_cache_hits_total", "Static file cache hits", cache.getHitCount());
+            counter(out, "static_file_cache_misses_total", "Static file cache misses", cache.getMissCount());
+            counter(out, "static_file_cache_evictions_total", "Static file cache evictions", cache.getEvictionCount());
+            gauge(out, "static_file_cache_bytes", "Bytes held by the static file cache", cache.getSizeBytes());
+            gauge(out, "static_file_cache_entries", "Files held by the static file cache", cache.getEntryCount());
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String endpoint, Object value) {
+        out.append(name).append("{endpoint=\"").append(endpoint).append("\"} ").append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static double seconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    // Counts body bytes on their way to HttpServer's own response stream
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
@@ -1,14 +1,53 @@
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class SimpleWebServer {
     private static final int PORT = 8080;
+    private static final int DEFAULT_POOL_SIZE = 10;
+    private static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    
+    // Hot static files are kept in memory; tune with -Dserver.cache.maxBytes / maxEntryBytes
+    static final StaticFileCache FILE_CACHE = new StaticFileCache(
+            Long.getLong("server.cache.maxBytes", 64L * 1024 * 1024),
+            Long.getLong("server.cache.maxEntryBytes", 1024 * 1024));
+    
+    // Request counts, latency histograms and executor gauges, served on /metrics
+    static final ServerMetrics METRICS = new ServerMetrics();
+    
+    // Largest POST body /echo accepts before answering 413
+    static final long ECHO_MAX_BYTES = Long.getLong("server.echo.maxBytes", 10L * 1024 * 1024);
     private static final String HTML_TEMPLATE = """
         <!DOCTYPE html>
         <html>
@@ -45,6 +84,9 @@ public class SimpleWebServer {
                 <div class="endpoint">
                     <strong>GET /file/{filename}</strong> - Serve static files
                 </div>
+                <div class="endpoint">
+                    <strong>GET /metrics</strong> - Request and executor metrics
+                </div>
                 
                 <h2>Server Info:</h2>
                 <ul>
@@ -57,13 +99,28 @@ public class SimpleWebServer {
         </html>
         """;
 
+    // Port, CPU count and Java version never change, so the page is rendered, encoded
+    // and compressed once
+    private static final HttpCompression.Precompressed HOME_PAGE = new HttpCompression.Precompressed(
+            String.format(HTML_TEMPLATE, PORT, Runtime.getRuntime().availableProcessors(),
+                    System.getProperty("java.version")).getBytes(StandardCharsets.UTF_8),
+            "text/html");
+
     static class HomeHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("GET".equals(exchange.getRequestMethod())) {
-                String response = String.format(HTML_TEMPLATE, PORT, Runtime.getRuntime().availableProcessors(), 
-                                              System.getProperty("java.version"));
-                sendResponse(exchange, 200, response);
+                byte[] body = HOME_PAGE.identity();
+                if (HOME_PAGE.isCompressible()) {
+                    exchange.getResponseHeaders().set("Vary", "Accept-Encoding");
+                    HttpCompression.Encoding encoding = HttpCompression.negotiate(
+                            exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    if (encoding != null && HOME_PAGE.encoded(encoding) != null) {
+                        body = HOME_PAGE.encoded(encoding);
+                        exchange.getResponseHeaders().set("Content-Encoding", encoding.token());
+                    }
+                }
+                sendResponse(exchange, 200, body, "text/html; charset=utf-8");
             } else {
                 sendResponse(exchange, 405, "Method Not Allowed");
             }
@@ -71,83 +128,631 @@ public class SimpleWebServer {
     }
 
     static class HelloHandler implements HttpHandler {
+        private static final JsonTemplate TEMPLATE = new JsonTemplate("""
+            {
+                "message": "Hello from Java Server!",
+                "timestamp": "%s",
+                "status": "success"
+            }
+            """, new TimestampField(ZoneId.systemDefault(), false));
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String response = """
-                {
-                    "message": "Hello from Java Server!",
-                    "timestamp": "%s",
-                    "status": "success"
-                }
-                """.formatted(java.time.LocalDateTime.now());
-            sendResponse(exchange, 200, response, "application/json");
+            TEMPLATE.send(exchange, 200);
         }
     }
 
     static class TimeHandler implements HttpHandler {
+        private static final JsonTemplate TEMPLATE = new JsonTemplate("""
+            {
+                "current_time": "%s",
+                "timezone": "UTC",
+                "server": "Java_HTTP_Server"
+            }
+            """, new TimestampField(ZoneOffset.UTC, true));
+
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            String response = """
-                {
-                    "current_time": "%s",
-                    "timezone": "UTC",
-                    "server": "Java_HTTP_Server"
-                }
-                """.formatted(java.time.Instant.now());
-            sendResponse(exchange, 200, response, "application/json");
+            TEMPLATE.send(exchange, 200);
+        }
+    }
+
+    // A JSON body whose only dynamic part is a timestamp. The text around the placeholder
+    // is encoded once; each response writes the pre-encoded pieces and patches the time in.
+    static class JsonTemplate {
+        private final byte[] prefix;
+        private final byte[] suffix;
+        private final TimestampField timestamp;
+
+        JsonTemplate(String template, TimestampField timestamp) {
+            int placeholder = template.indexOf("%s");
+            if (placeholder < 0 || template.indexOf("%s", placeholder + 2) >= 0) {
+                throw new IllegalArgumentException("Template needs exactly one %s placeholder");
+            }
+            this.prefix = template.substring(0, placeholder).getBytes(StandardCharsets.UTF_8);
+            this.suffix = template.substring(placeholder + 2).getBytes(StandardCharsets.UTF_8);
+            this.timestamp = timestamp;
+        }
+
+        void send(HttpExchange exchange, int statusCode) throws IOException {
+            long now = System.currentTimeMillis();
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Server", "Java-HTTP-Server/1.0");
+            exchange.sendResponseHeaders(statusCode, prefix.length + timestamp.length() + suffix.length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(prefix);
+                timestamp.writeTo(os, now);
+                os.write(suffix);
+            }
+        }
+    }
+
+    // ISO-8601 timestamp with millisecond precision, e.g. 2024-05-01T12:30:45.123Z.
+    // The date/time part is formatted at most once per second; only the millis are
+    // written per call, so rendering allocates nothing on the hot path.
+    static class TimestampField {
+        private static final DateTimeFormatter SECONDS = DateTimeFormatter.ofPattern("uuuu-MM-dd'T'HH:mm:ss");
+
+        private final ZoneId zone;
+        private final boolean zulu;
+        private volatile Second cached = new Second(Long.MIN_VALUE, new byte[0]);
+
+        private static class Second {
+            final long epochSecond;
+            final byte[] text;
+
+            Second(long epochSecond, byte[] text) {
+                this.epochSecond = epochSecond;
+                this.text = text;
+            }
+        }
+
+        TimestampField(ZoneId zone, boolean zulu) {
+            this.zone = zone;
+            this.zulu = zulu;
+        }
+
+        int length() {
+            // "uuuu-MM-ddTHH:mm:ss" + ".SSS" (+ "Z")
+            return 19 + 4 + (zulu ? 1 : 0);
+        }
+
+        void writeTo(OutputStream os, long epochMillis) throws IOException {
+            long epochSecond = Math.floorDiv(epochMillis, 1000);
+            int millis = Math.floorMod(epochMillis, 1000);
+
+            Second second = cached;
+            if (second.epochSecond != epochSecond) {
+                String text = SECONDS.format(Instant.ofEpochSecond(epochSecond).atZone(zone));
+                second = new Second(epochSecond, text.getBytes(StandardCharsets.US_ASCII));
+                cached = second;
+            }
+
+            os.write(second.text);
+            os.write('.');
+            os.write('0' + millis / 100);
+            os.write('0' + millis / 10 % 10);
+            os.write('0' + millis % 10);
+            if (zulu) {
+                os.write('Z');
+            }
         }
     }
 
     static class EchoHandler implements HttpHandler {
+        private static final byte[] ECHO_PREFIX = "{\n    \"echo\": \"".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] RECEIVED_AT = "\",\n    \"received_at\": \"".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] LENGTH = "\",\n    \"length\": ".getBytes(StandardCharsets.UTF_8);
+        private static final byte[] SUFFIX = "\n}\n".getBytes(StandardCharsets.UTF_8);
+        private static final TimestampField RECEIVED_AT_FIELD = new TimestampField(ZoneId.systemDefault(), false);
+        
+        private final long maxBodyBytes;
+        
+        EchoHandler(long maxBodyBytes) {
+            this.maxBodyBytes = maxBodyBytes;
+        }
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
-            if ("POST".equals(exchange.getRequestMethod())) {
-                // Read request body
-                InputStream requestBody = exchange.getRequestBody();
-                String body = new String(requestBody.readAllBytes());
-                
-                String response = """
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendResponse(exchange, 405, "Only POST method allowed");
+                return;
+            }
+            
+            String declaredLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (declaredLength != null && parseLength(declaredLength) > maxBodyBytes) {
+                // Don't let the connection drain a body we are refusing
+                exchange.getResponseHeaders().set("Connection", "close");
+                sendResponse(exchange, 413, """
                     {
-                        "echo": "%s",
-                        "received_at": "%s",
-                        "length": %d
+                        "error": "Payload too large",
+                        "max_bytes": %d
+                    }
+                    """.formatted(maxBodyBytes), "application/json");
+                return;
+            }
+            
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.getResponseHeaders().set("Server", "Java-HTTP-Server/1.0");
+            // Length 0 selects chunked transfer encoding; the body size isn't known up front
+            exchange.sendResponseHeaders(200, 0);
+            
+            // Body is escaped as it arrives, so memory per request is a few fixed buffers
+            try (InputStream requestBody = exchange.getRequestBody();
+                 OutputStream os = exchange.getResponseBody()) {
+                os.write(ECHO_PREFIX);
+                JsonEscaper escaper = new JsonEscaper(os);
+                byte[] buffer = new byte[8192];
+                long received = 0;
+                int n;
+                while ((n = requestBody.read(buffer)) != -1) {
+                    received += n;
+                    if (received > maxBodyBytes) {
+                        // Headers are already out (chunked upload without Content-Length);
+                        // abort so the client sees a truncated response, not a bogus echo
+                        throw new IOException("Echo body exceeds " + maxBodyBytes + " bytes");
                     }
-                    """.formatted(body.replace("\"", "\\\""), 
-                                 java.time.LocalDateTime.now(), body.length());
-                sendResponse(exchange, 200, response, "application/json");
+                    escaper.write(buffer, 0, n);
+                }
+                escaper.finish();
+                
+                os.write(RECEIVED_AT);
+                RECEIVED_AT_FIELD.writeTo(os, System.currentTimeMillis());
+                os.write(LENGTH);
+                os.write(Long.toString(escaper.charCount()).getBytes(StandardCharsets.US_ASCII));
+                os.write(SUFFIX);
+            }
+        }
+        
+        private static long parseLength(String value) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
+    // Incremental UTF-8 to JSON string escaper. Bytes are decoded through fixed-size
+    // buffers, so input split anywhere (even inside a multi-byte character) is handled
+    // without holding the whole payload. Malformed input is replaced with U+FFFD.
+    static class JsonEscaper {
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        
+        private final OutputStream out;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer pending = ByteBuffer.allocate(8192);
+        private final CharBuffer chars = CharBuffer.allocate(8192);
+        private final byte[] encoded = new byte[8192];
+        private int encodedLength;
+        private char highSurrogate;
+        private long charCount;
+        
+        JsonEscaper(OutputStream out) {
+            this.out = out;
+        }
+        
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int n = Math.min(length, pending.remaining());
+                pending.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+                decode(false);
+            }
+        }
+        
+        void finish() throws IOException {
+            decode(true);
+            decoder.flush(chars);
+            drainChars();
+            if (highSurrogate != 0) {
+                // Unpaired surrogate can't be encoded; emit the replacement character
+                emitCodePoint(0xFFFD);
+                highSurrogate = 0;
+            }
+            flushEncoded();
+        }
+        
+        // Number of UTF-16 chars echoed, matching String.length() of the decoded body
+        long charCount() {
+            return charCount;
+        }
+        
+        // Escapes a complete string; for small values such as error messages
+        static String escape(String value) {
+            StringBuilder sb = new StringBuilder(value.length() + 16);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"': sb.append("\\\""); break;
+                    case '\\': sb.append("\\\\"); break;
+                    case '\n': sb.append("\\n"); break;
+                    case '\r': sb.append("\\r"); break;
+                    case '\t': sb.append("\\t"); break;
+                    case '\b': sb.append("\\b"); break;
+                    case '\f': sb.append("\\f"); break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                }
+            }
+            return sb.toString();
+        }
+        
+        private void decode(boolean endOfInput) throws IOException {
+            pending.flip();
+            while (true) {
+                CoderResult result = decoder.decode(pending, chars, endOfInput);
+                drainChars();
+                if (!result.isOverflow()) {
+                    break;
+                }
+            }
+            // Keep any trailing partial character for the next call
+            pending.compact();
+        }
+        
+        private void drainChars() throws IOException {
+            chars.flip();
+            while (chars.hasRemaining()) {
+                char c = chars.get();
+                charCount++;
+                if (highSurrogate != 0) {
+                    char high = highSurrogate;
+                    highSurrogate = 0;
+                    if (Character.isLowSurrogate(c)) {
+                        emitCodePoint(Character.toCodePoint(high, c));
+                        continue;
+                    }
+                    emitCodePoint(0xFFFD);
+                }
+                if (Character.isHighSurrogate(c)) {
+                    highSurrogate = c;
+                } else if (Character.isLowSurrogate(c)) {
+                    emitCodePoint(0xFFFD);
+                } else {
+                    emitChar(c);
+                }
+            }
+            chars.clear();
+        }
+        
+        private void emitChar(char c) throws IOException {
+            // Worst case is the six byte escape for a control character
+            if (encodedLength > encoded.length - 6) {
+                flushEncoded();
+            }
+            byte[] b = encoded;
+            switch (c) {
+                case '"': b[encodedLength++] = '\\'; b[encodedLength++] = '"'; return;
+                case '\\': b[encodedLength++] = '\\'; b[encodedLength++] = '\\'; return;
+                case '\n': b[encodedLength++] = '\\'; b[encodedLength++] = 'n'; return;
+                case '\r': b[encodedLength++] = '\\'; b[encodedLength++] = 'r'; return;
+                case '\t': b[encodedLength++] = '\\'; b[encodedLength++] = 't'; return;
+                case '\b': b[encodedLength++] = '\\'; b[encodedLength++] = 'b'; return;
+                case '\f': b[encodedLength++] = '\\'; b[encodedLength++] = 'f'; return;
+                default:
+                    break;
+            }
+            if (c < 0x20) {
+                b[encodedLength++] = '\\';
+                b[encodedLength++] = 'u';
+                b[encodedLength++] = '0';
+                b[encodedLength++] = '0';
+                b[encodedLength++] = HEX[c >> 4];
+                b[encodedLength++] = HEX[c & 0xF];
+            } else if (c < 0x80) {
+                b[encodedLength++] = (byte) c;
             } else {
-                sendResponse(exchange, 405, "Only POST method allowed");
+                emitCodePoint(c);
+            }
+        }
+        
+        private void emitCodePoint(int cp) throws IOException {
+            if (encodedLength > encoded.length - 4) {
+                flushEncoded();
+            }
+            byte[] b = encoded;
+            if (cp < 0x800) {
+                b[encodedLength++] = (byte) (0xC0 | (cp >> 6));
+                b[encodedLength++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (cp < 0x10000) {
+                b[encodedLength++] = (byte) (0xE0 | (cp >> 12));
+                b[encodedLength++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[encodedLength++] = (byte) (0x80 | (cp & 0x3F));
+            } else {
+                b[encodedLength++] = (byte) (0xF0 | (cp >> 18));
+                b[encodedLength++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[encodedLength++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[encodedLength++] = (byte) (0x80 | (cp & 0x3F));
+            }
+        }
+        
+        private void flushEncoded() throws IOException {
+            if (encodedLength > 0) {
+                out.write(encoded, 0, encodedLength);
+                encodedLength = 0;
             }
         }
     }
 
     static class FileHandler implements HttpHandler {
+        private static final DateTimeFormatter HTTP_DATE =
+                DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+        
+        private final StaticFileCache cache;
+        
+        FileHandler(StaticFileCache cache) {
+            this.cache = cache;
+        }
+        
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             String path = exchange.getRequestURI().getPath();
             String filename = path.substring("/file/".length());
             
+            Path file;
+            BasicFileAttributes attrs;
+            try {
+                file = Paths.get(filename);
+                attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                if (!attrs.isRegularFile()) {
+                    throw new NoSuchFileException(filename);
+                }
+            } catch (IOException | InvalidPathException e) {
+                sendNotFound(exchange, filename, e);
+                return;
+            }
+            
+            long size = attrs.size();
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+            String contentType = getContentType(filename);
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Server", "Java-HTTP-Server/1.0");
+            headers.set("Accept-Ranges", "bytes");
+            headers.set("ETag", etag);
+            headers.set("Last-Modified", HTTP_DATE.format(Instant.ofEpochMilli(lastModified)));
+            
+            if (isNotModified(exchange.getRequestHeaders(), etag, lastModified)) {
+                // The 304 may confirm an encoding-specific tag, so caches must still key on it
+                if (HttpCompression.shouldCompress(contentType, size)) {
+                    headers.set("Vary", "Accept-Encoding");
+                }
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            
+            boolean head = "HEAD".equals(exchange.getRequestMethod());
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            
+            // Small files are answered from memory; ranges and large files stream from disk
+            if (range == null && cache.isCacheable(size)) {
+                StaticFileCache.Entry entry = cache.lookup(file, attrs);
+                headers.set("X-Cache", entry != null ? "HIT" : "MISS");
+                if (entry == null) {
+                    try {
+                        entry = cache.load(file, attrs, contentType);
+                    } catch (IOException e) {
+                        sendNotFound(exchange, filename, e);
+                        return;
+                    }
+                }
+                byte[] body = entry.body();
+                headers.set("Content-Type", entry.contentType());
+                if (HttpCompression.shouldCompress(entry.contentType(), body.length)) {
+                    // Compressed once per file version, then served from the cache entry
+                    headers.set("Vary", "Accept-Encoding");
+                    HttpCompression.Encoding encoding = HttpCompression.negotiate(
+                            exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    byte[] encoded = encoding != null ? cache.encoded(entry, encoding) : null;
+                    if (encoded != null) {
+                        body = encoded;
+                        headers.set("Content-Encoding", encoding.token());
+                        // Each representation needs its own strong validator
+                        headers.set("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding.token() + "\"");
+                    }
+                }
+                if (head) {
+                    headers.set("Content-Length", String.valueOf(body.length));
+                }
+                exchange.sendResponseHeaders(200, head || body.length == 0 ? -1 : body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (!head) {
+                        os.write(body);
+                    }
+                }
+                return;
+            }
+            
+            FileChannel channel;
             try {
-                String content = Files.readString(Paths.get(filename));
-                sendResponse(exchange, 200, content, getContentType(filename));
+                channel = FileChannel.open(file, StandardOpenOption.READ);
             } catch (IOException e) {
-                String response = """
-                    {
-                        "error": "File not found",
-                        "filename": "%s",
-                        "message": "%s"
+                sendNotFound(exchange, filename, e);
+                return;
+            }
+            
+            // The file is streamed straight from the channel, never held on the heap as a whole
+            try (channel) {
+                long start = 0;
+                long length = size;
+                int status = 200;
+                
+                if (range != null) {
+                    long[] bounds = parseRange(range, size);
+                    if (bounds == UNSATISFIABLE) {
+                        headers.set("Content-Range", "bytes */" + size);
+                        sendResponse(exchange, 416, "Requested range not satisfiable", "text/plain");
+                        return;
+                    }
+                    if (bounds != null) {
+                        start = bounds[0];
+                        length = bounds[1] - bounds[0] + 1;
+                        status = 206;
+                        headers.set("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + size);
+                    }
+                }
+                
+                headers.set("Content-Type", contentType);
+                if (status == 200 && HttpCompression.shouldCompress(contentType, size)) {
+                    headers.set("Vary", "Accept-Encoding");
+                    HttpCompression.Encoding encoding = HttpCompression.negotiate(
+                            exchange.getRequestHeaders().getFirst("Accept-Encoding"));
+                    if (encoding != null) {
+                        sendCompressed(exchange, channel, size, encoding, etag, head);
+                        return;
+                    }
+                }
+                if (head) {
+                    headers.set("Content-Length", String.valueOf(length));
+                }
+                // -1 tells HttpServer there is no body; 0 would switch it to chunked encoding
+                exchange.sendResponseHeaders(status, head || length == 0 ? -1 : length);
+                
+                try (OutputStream os = exchange.getResponseBody()) {
+                    if (!head) {
+                        transfer(channel, start, length, Channels.newChannel(os));
+                    }
+                }
+            }
+        }
+        
+        // Too large to cache, so compressed while streaming; the length isn't known up
+        // front and the response goes out chunked
+        private static void sendCompressed(HttpExchange exchange, FileChannel channel, long size,
+                                           HttpCompression.Encoding encoding, String etag,
+                                           boolean head) throws IOException {
+            Headers headers = exchange.getResponseHeaders();
+            headers.set("Content-Encoding", encoding.token());
+            headers.set("ETag", etag.substring(0, etag.length() - 1) + "-" + encoding.token() + "\"");
+            exchange.sendResponseHeaders(200, head ? -1 : 0);
+            if (head) {
+                exchange.close();
+                return;
+            }
+            try (OutputStream os = encoding.wrap(exchange.getResponseBody())) {
+                transfer(channel, 0, size, Channels.newChannel(os));
+            }
+        }
+        
+        // If-None-Match takes precedence; If-Modified-Since is only consulted without it.
+        // Tags of compressed representations ("size-mtime-gzip") match the same file version.
+        static boolean isNotModified(Headers request, String etag, long lastModified) {
+            String ifNoneMatch = request.getFirst("If-None-Match");
+            if (ifNoneMatch != null) {
+                String versionPrefix = etag.substring(0, etag.length() - 1) + "-";
+                for (String candidate : ifNoneMatch.split(",")) {
+                    String tag = candidate.trim();
+                    if (tag.startsWith("W/")) {
+                        tag = tag.substring(2);
+                    }
+                    if (tag.equals("*") || tag.equals(etag)
+                            || (tag.startsWith(versionPrefix) && tag.endsWith("\""))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            String ifModifiedSince = request.getFirst("If-Modified-Since");
+            if (ifModifiedSince != null) {
+                try {
+                    long since = ZonedDateTime.parse(ifModifiedSince, HTTP_DATE).toEpochSecond();
+                    // HTTP dates have second precision
+                    return lastModified / 1000 <= since;
+                } catch (DateTimeParseException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+        
+        private static void sendNotFound(HttpExchange exchange, String filename, Exception e)
+                throws IOException {
+            String response = """
+                {
+                    "error": "File not found",
+                    "filename": "%s",
+                    "message": "%s"
+                }
+                """.formatted(JsonEscaper.escape(filename), JsonEscaper.escape(String.valueOf(e.getMessage())));
+            sendResponse(exchange, 404, response, "application/json");
+        }
+        
+        private static void transfer(FileChannel channel, long position, long count,
+                                     WritableByteChannel target) throws IOException {
+            while (count > 0) {
+                long sent = channel.transferTo(position, count, target);
+                if (sent <= 0) {
+                    throw new EOFException("File truncated while sending");
+                }
+                position += sent;
+                count -= sent;
+            }
+        }
+        
+        private static final long[] UNSATISFIABLE = new long[0];
+        
+        // Parses a single "bytes=" range into inclusive bounds. Returns null when the header
+        // should be ignored (malformed or multi-range) and UNSATISFIABLE when it lies past the end.
+        static long[] parseRange(String header, long size) {
+            if (!header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+                return null;
+            }
+            String spec = header.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // Suffix range: the final N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix <= 0 || size == 0) {
+                        return UNSATISFIABLE;
                     }
-                    """.formatted(filename, e.getMessage());
-                sendResponse(exchange, 404, response, "application/json");
+                    return new long[] {Math.max(0, size - suffix), size - 1};
+                }
+                long start = Long.parseLong(first);
+                if (start >= size) {
+                    return UNSATISFIABLE;
+                }
+                long end = last.isEmpty() ? size - 1 : Long.parseLong(last);
+                if (start < 0 || end < start) {
+                    return null;
+                }
+                return new long[] {start, Math.min(end, size - 1)};
+            } catch (NumberFormatException e) {
+                return null;
             }
         }
         
         private String getContentType(String filename) {
-            if (filename.endsWith(".html")) return "text/html";
-            if (filename.endsWith(".css")) return "text/css";
-            if (filename.endsWith(".js")) return "application/javascript";
-            if (filename.endsWith(".json")) return "application/json";
-            return "text/plain";
+            String name = filename.toLowerCase();
+            if (name.endsWith(".html")) return "text/html";
+            if (name.endsWith(".css")) return "text/css";
+            if (name.endsWith(".js")) return "application/javascript";
+            if (name.endsWith(".json")) return "application/json";
+            if (name.endsWith(".txt") || name.endsWith(".md") || name.endsWith(".java")) return "text/plain";
+            if (name.endsWith(".svg")) return "image/svg+xml";
+            if (name.endsWith(".png")) return "image/png";
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+            if (name.endsWith(".gif")) return "image/gif";
+            if (name.endsWith(".pdf")) return "application/pdf";
+            if (name.endsWith(".zip")) return "application/zip";
+            if (name.endsWith(".gz")) return "application/gzip";
+            // Unknown types are served byte-for-byte rather than as (possibly mangled) text
+            return "application/octet-stream";
         }
     }
 
@@ -158,47 +763,176 @@ public class SimpleWebServer {
 
     private static void sendResponse(HttpExchange exchange, int statusCode, String response, String contentType) 
             throws IOException {
+        if (contentType.startsWith("text/")) {
+            contentType += "; charset=utf-8";
+        }
+        sendResponse(exchange, statusCode, response.getBytes(StandardCharsets.UTF_8), contentType);
+    }
+
+    private static void sendResponse(HttpExchange exchange, int statusCode, byte[] body, String contentType) 
+            throws IOException {
         exchange.getResponseHeaders().set("Content-Type", contentType);
         exchange.getResponseHeaders().set("Server", "Java-HTTP-Server/1.0");
-        exchange.sendResponseHeaders(statusCode, response.getBytes().length);
+        exchange.sendResponseHeaders(statusCode, body.length == 0 ? -1 : body.length);
         
         try (OutputStream os = exchange.getResponseBody()) {
-            os.write(response.getBytes());
+            os.write(body);
+        }
+    }
+
+    // How request handlers are scheduled; chosen once at startup
+    enum ExecutorMode {
+        VIRTUAL,  // one virtual thread per request (JDK 21+)
+        FIXED;    // bounded platform thread pool
+
+        static ExecutorMode parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown executor mode: " + value
+                        + " (expected virtual or fixed)");
+            }
+        }
+
+        ExecutorService createExecutor(int poolSize) {
+            if (this == VIRTUAL) {
+                ExecutorService virtual = newVirtualThreadExecutor();
+                if (virtual != null) {
+                    return virtual;
+                }
+                System.err.println("Virtual threads need Java 21+, falling back to a fixed pool of "
+                        + poolSize + " threads");
+            }
+            return Executors.newFixedThreadPool(poolSize);
+        }
+
+        // Looked up reflectively so the server still compiles and runs on Java 17
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                return null;
+            }
+        }
+    }
+
+    static Map<String, HttpHandler> routes() {
+        Map<String, HttpHandler> routes = new LinkedHashMap<>();
+        routes.put("/", new HomeHandler());
+        routes.put("/hello", new HelloHandler());
+        routes.put("/time", new TimeHandler());
+        routes.put("/echo", new EchoHandler(ECHO_MAX_BYTES));
+        routes.put("/file/", new FileHandler(FILE_CACHE));
+        return routes;
+    }
+
+    // Which front end accepts connections; both serve the same handlers
+    enum Engine {
+        JDK,  // com.sun.net.httpserver
+        NIO;  // NioHttpServer: selector event loops, keep-alive and pipelining
+
+        static Engine parse(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Unknown engine: " + value + " (expected jdk or nio)");
+            }
         }
     }
 
     public static void startServer() throws IOException {
-        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        startServer(ExecutorMode.VIRTUAL, DEFAULT_POOL_SIZE);
+    }
+
+    public static void startServer(ExecutorMode mode, int poolSize) throws IOException {
+        startServer(mode, poolSize, Engine.JDK, DEFAULT_EVENT_LOOPS);
+    }
+
+    public static void startServer(ExecutorMode mode, int poolSize, Engine engine, int eventLoops)
+            throws IOException {
+        // Virtual threads keep blocking file and echo requests from starving cheap ones
+        ExecutorService executor = mode.createExecutor(poolSize);
         
-        // Register handlers
-        server.createContext("/", new HomeHandler());
-        server.createContext("/hello", new HelloHandler());
-        server.createContext("/time", new TimeHandler());
-        server.createContext("/echo", new EchoHandler());
-        server.createContext("/file/", new FileHandler());
+        // Bounded admission in front of the executor: a full queue or a request that
+        // waited past its deadline gets a fast 503 instead of a worker thread
+        AdmissionControl admission = new AdmissionControl(executor,
+                Integer.getInteger("server.queue.max", 100),
+                Long.getLong("server.queue.deadlineMs", 1000), TimeUnit.MILLISECONDS);
         
-        // Set executor for better performance
-        server.setExecutor(Executors.newFixedThreadPool(10));
+        // Slow endpoints are capped so they can't occupy every worker; 0 means unlimited
+        int defaultLimit = mode == ExecutorMode.FIXED ? Math.max(1, poolSize / 2) : 100;
+        Map<String, Integer> limits = Map.of(
+                "/file/", Integer.getInteger("server.limit.file", defaultLimit),
+                "/echo", Integer.getInteger("server.limit.echo", defaultLimit));
         
-        server.start();
+        // Wrap handlers with admission checks and request metrics
+        Map<String, HttpHandler> handlers = new LinkedHashMap<>();
+        for (Map.Entry<String, HttpHandler> route : routes().entrySet()) {
+            HttpHandler guarded = admission.guard(route.getValue(), limits.getOrDefault(route.getKey(), 0));
+            handlers.put(route.getKey(), METRICS.instrument(route.getKey(), guarded));
+        }
+        handlers.put("/metrics", METRICS.handler());
+        METRICS.setExecutor(executor);
+        METRICS.setAdmissionControl(admission);
+        METRICS.setFileCache(FILE_CACHE);
+        
+        InetSocketAddress address = new InetSocketAddress(PORT);
+        if (engine == Engine.NIO) {
+            NioHttpServer server = new NioHttpServer(address, eventLoops);
+            handlers.forEach(server::createContext);
+            server.setExecutor(admission);
+            server.start();
+        } else {
+            HttpServer server = HttpServer.create(address, 0);
+            handlers.forEach(server::createContext);
+            server.setExecutor(admission);
+            server.start();
+        }
         
-        System.out.println("🌐 Server started on http://localhost:" + PORT);
+        String executorInfo = executor instanceof ThreadPoolExecutor
+                ? "fixed pool, " + poolSize + " threads"
+                : "virtual thread per request";
+        String engineInfo = engine == Engine.NIO ? "nio engine, " + eventLoops + " event loops" : "jdk engine";
+        System.out.println("🌐 Server started on http://localhost:" + PORT + " (" + engineInfo + ", "
+                + executorInfo + ")");
         System.out.println("📚 Available endpoints:");
         System.out.println("   GET  /      - Homepage");
         System.out.println("   GET  /hello - JSON greeting");
         System.out.println("   GET  /time  - Current time");
         System.out.println("   POST /echo  - Echo POST data");
         System.out.println("   GET  /file/ - Serve files");
+        System.out.println("   GET  /metrics - Prometheus metrics");
         System.out.println("\nPress Ctrl+C to stop the server...");
     }
 
     public static void main(String[] args) {
+        // Options: --executor=virtual|fixed  --threads=N  --engine=jdk|nio  --loops=N
+        // (or -Dserver.executor / -Dserver.threads / -Dserver.engine / -Dserver.loops)
+        String executor = System.getProperty("server.executor", "virtual");
+        String threads = System.getProperty("server.threads", String.valueOf(DEFAULT_POOL_SIZE));
+        String engine = System.getProperty("server.engine", "jdk");
+        String loops = System.getProperty("server.loops", String.valueOf(DEFAULT_EVENT_LOOPS));
+        for (String arg : args) {
+            if (arg.startsWith("--executor=")) {
+                executor = arg.substring("--executor=".length());
+            } else if (arg.startsWith("--threads=")) {
+                threads = arg.substring("--threads=".length());
+            } else if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.startsWith("--loops=")) {
+                loops = arg.substring("--loops=".length());
+            }
+        }
+        
         try {
-            startServer();
+            startServer(ExecutorMode.parse(executor), Integer.parseInt(threads),
+                    Engine.parse(engine), Integer.parseInt(loops));
             
             // Keep server running
             Thread.currentThread().join();
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException | InterruptedException | IllegalArgumentException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Size-bounded LRU cache of static file bodies for SimpleWebServer.
+// Entries are keyed by path and validated against the file's size and
+// modification time on every lookup, so edited files are never served stale.
+// Compressed variants live in the same entry and count towards its weight.
+public class StaticFileCache {
+
+    // Marks an encoding that was tried and didn't shrink the body
+    private static final byte[] NOT_SMALLER = new byte[0];
+
+    static class Entry {
+        private final Path key;
+        private final byte[] body;
+        private final String contentType;
+        private final long size;
+        private final long lastModified;
+        // Compressed variants, filled in lazily; guarded by the cache lock
+        private byte[] gzip;
+        private byte[] deflate;
+
+        Entry(Path key, byte[] body, String contentType, long size, long lastModified) {
+            this.key = key;
+            this.body = body;
+            this.contentType = contentType;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        byte[] body() { return body; }
+        String contentType() { return contentType; }
+        long lastModified() { return lastModified; }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size() && lastModified == attrs.lastModifiedTime().toMillis();
+        }
+
+        long weight() {
+            return body.length
+                    + (gzip != null ? gzip.length : 0)
+                    + (deflate != null ? deflate.length : 0);
+        }
+
+        private byte[] variant(HttpCompression.Encoding encoding) {
+            return encoding == HttpCompression.Encoding.GZIP ? gzip : deflate;
+        }
+
+        private void setVariant(HttpCompression.Encoding encoding, byte[] variant) {
+            if (encoding == HttpCompression.Encoding.GZIP) {
+                gzip = variant;
+            } else {
+                deflate = variant;
+            }
+        }
+    }
+
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public StaticFileCache(long maxBytes, long maxEntryBytes) {
+        if (maxBytes < 0 || maxEntryBytes < 0) {
+            throw new IllegalArgumentException("Cache limits must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    }
+
+    // Files above the per-entry limit bypass the cache and are streamed from disk
+    public boolean isCacheable(long size) {
+        return size <= maxEntryBytes;
+    }
+
+    // Returns the cached entry if it still matches the file on disk, otherwise null
+    public Entry lookup(Path file, BasicFileAttributes attrs) {
+        Path key = key(file);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.matches(attrs)) {
+                    hits.increment();
+                    return entry;
+                }
+                // File changed since it was cached
+                entries.remove(key);
+                currentBytes -= entry.weight();
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Reads the file and caches it; the disk read happens outside the lock
+    public Entry load(Path file, BasicFileAttributes attrs, String contentType) throws IOException {
+        Path key = key(file);
+        byte[] body = Files.readAllBytes(file);
+        Entry entry = new Entry(key, body, contentType, attrs.size(), attrs.lastModifiedTime().toMillis());
+        if (body.length != attrs.size() || !isCacheable(body.length)) {
+            // Modified while we were reading it; serve what we read but don't keep it
+            return entry;
+        }
+
+        synchronized (this) {
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                currentBytes -= previous.weight();
+            }
+            currentBytes += entry.weight();
+            evictIfNeeded();
+        }
+        return entry;
+    }
+
+    // Returns the entry's body in the given encoding, compressing it only the first time
+    // per file version. Returns null when compression doesn't make the body smaller.
+    public byte[] encoded(Entry entry, HttpCompression.Encoding encoding) {
+        synchronized (this) {
+            byte[] variant = entry.variant(encoding);
+            if (variant != null) {
+                return variant == NOT_SMALLER ? null : variant;
+            }
+        }
+
+        byte[] compressed = encoding.compress(entry.body);
+        byte[] variant = compressed.length < entry.body.length ? compressed : NOT_SMALLER;
+        synchronized (this) {
+            if (entry.variant(encoding) == null) {
+                entry.setVariant(encoding, variant);
+                // Only charge the cache if the entry hasn't been evicted meanwhile
+                if (entries.get(entry.key) == entry) {
+                    currentBytes += variant.length;
+                    evictIfNeeded();
+                }
+            }
+        }
+        return variant == NOT_SMALLER ? null : variant;
+    }
+
+    public synchronized void invalidate(Path file) {
+        Entry removed = entries.remove(key(file));
+        if (removed != null) {
+            currentBytes -= removed.weight();
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<Path, Entry>> it = entries.entrySet().iterator();
+        while (currentBytes > maxBytes && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            currentBytes -= eldest.weight();
+            evictions.increment();
+        }
+    }
+
+    private static Path key(Path file) {
+        return file.toAbsolutePath().normalize();
+    }
+
+    // Statistics
+    public long getHitCount() { return hits.sum(); }
+    public long getMissCount() { return misses.sum(); }
+    public long getEvictionCount() { return evictions.sum(); }
+    public synchronized int getEntryCount() { return entries.size(); }
+    public synchronized long getSizeBytes() { return currentBytes; }
+
+    @Override
+    public String toString() {
+        return String.format("StaticFileCache[entries=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d]",
+                getEntryCount(), getSizeBytes(), maxBytes, getHitCount(), getMissCount(), getEvictionCount());
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// Top-K word selection. exact() picks the K largest entries of a frequency map with a
+// K-sized heap (O(n log K) instead of sorting all n entries). SpaceSaving finds the
+// heavy hitters of a word stream without ever holding the full frequency map.
+public class TopK {
+
+    // Highest count first; equal counts in alphabetical order so results are repeatable
+    static final Comparator<Map.Entry<String, Long>> BY_COUNT_DESC =
+            Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey());
+
+    public static List<Map.Entry<String, Long>> exact(Map<String, Long> counts, int k) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        // Min-heap on the same order: the root is the weakest of the current top K
+        PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(k + 1, BY_COUNT_DESC.reversed());
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            if (heap.size() < k) {
+                heap.add(entry);
+            } else if (BY_COUNT_DESC.compare(entry, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(entry);
+            }
+        }
+        List<Map.Entry<String, Long>> top = new ArrayList<>(heap);
+        top.sort(BY_COUNT_DESC);
+        return top;
+    }
+
+    // Space-Saving sketch (Metwally et al.) with a fixed number of counters m.
+    // After N words:
+    //   - every word with true count > N/m is being tracked
+    //   - for a tracked word, estimate - error <= true count <= estimate, and
+    //     error <= N/m (error is the count of the word it evicted)
+    // Memory is O(m) whatever the vocabulary size.
+    public static class SpaceSaving {
+        private final int capacity;
+        // Min-heap on count, stored in parallel arrays, plus word -> heap position
+        private final String[] words;
+        private final long[] counts;
+        private final long[] errors;
+        private final Map<String, Integer> positions;
+        private int size;
+        private long total;
+
+        public SpaceSaving(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive");
+            }
+            this.capacity = capacity;
+            this.words = new String[capacity];
+            this.counts = new long[capacity];
+            this.errors = new long[capacity];
+            this.positions = new HashMap<>(capacity * 2);
+        }
+
+        public void add(String word) {
+            total++;
+            Integer position = positions.get(word);
+            if (position != null) {
+                counts[position]++;
+                siftDown(position);
+            } else if (size < capacity) {
+                words[size] = word;
+                counts[size] = 1;
+                errors[size] = 0;
+                positions.put(word, size);
+                siftUp(size++);
+            } else {
+                // Evict the smallest counter; the newcomer inherits its count as error
+                positions.remove(words[0]);
+                long min = counts[0];
+                words[0] = word;
+                counts[0] = min + 1;
+                errors[0] = min;
+                positions.put(word, 0);
+                siftDown(0);
+            }
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        // Upper bound on how far any estimate can be above the true count
+        public long getMaxError() {
+            return size < capacity ? 0 : counts[0];
+        }
+
+        // The k largest estimates, highest first
+        public List<Estimate> top(int k) {
+            List<Estimate> all = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                all.add(new Estimate(words[i], counts[i], errors[i]));
+            }
+            all.sort(Comparator.comparingLong(Estimate::getCount).reversed().thenComparing(Estimate::getWord));
+            List<Estimate> top = new ArrayList<>(all.subList(0, Math.min(k, all.size())));
+            // A word surely belongs in the top k if its lower bound beats every estimate below
+            // it (and any untracked word, none of which can exceed the smallest counter)
+            long nextEstimate = all.size() > k ? all.get(k).getCount() : getMaxError();
+            for (Estimate estimate : top) {
+                estimate.guaranteed = estimate.getCount() - estimate.getError() >= nextEstimate;
+            }
+            return top;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (counts[parent] <= counts[i]) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int left = 2 * i + 1;
+                if (left >= size) {
+                    return;
+                }
+                int smallest = left + 1 < size && counts[left + 1] < counts[left] ? left + 1 : left;
+                if (counts[i] <= counts[smallest]) {
+                    return;
+                }
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            String word = words[a];
+            words[a] = words[b];
+            words[b] = word;
+            long count = counts[a];
+            counts[a] = counts[b];
+            counts[b] = count;
+            long error = errors[a];
+            errors[a] = errors[b];
+            errors[b] = error;
+            positions.put(words[a], a);
+            positions.put(words[b], b);
+        }
+    }
+
+    public static class Estimate {
+        private final String word;
+        private final long count;
+        private final long error;
+        private boolean guaranteed;
+
+        Estimate(String word, long count, long error) {
+            this.word = word;
+            this.count = count;
+            this.error = error;
+        }
+
+        public String getWord() { return word; }
+        public long getCount() { return count; }
+        public long getError() { return error; }
+        public boolean isGuaranteed() { return guaranteed; }
+
+        @Override
+        public String toString() {
+            return word + ": " + count + (error > 0 ? " (at most " + error + " too high)" : "");
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Bounded transaction history for one account, stored as primitive columns: 29 bytes
+// per entry (timestamp, type, amount, resulting balance, counterparty) and no object
+// per entry. Entries are numbered in the order they were added (their sequence
+// number) and timestamps never decrease along that order, so a time range maps to a
+// range of sequence numbers found by binary search.
+//
+// At most capacity entries are kept in memory, in a ring. When it is full the oldest
+// entry is dropped, or, if a spill file was given, the oldest half of the ring is
+// appended to that file as fixed-size records and stays queryable from there.
+//
+// Methods are synchronized; visitors run under the lock and must not call back in.
+public class TransactionHistory implements Closeable {
+
+    public interface Visitor {
+        void visit(long sequence, long timestampNanos, byte type, long amountCents, long balanceCents,
+                int counterparty);
+    }
+
+    static final int RECORD_BYTES = 8 + 1 + 8 + 8 + 4;
+    private static final int INITIAL_LENGTH = 16;
+    private static final int READ_BATCH = 256;
+
+    private final int capacity;
+    private final Path spillFile;
+    private final FileChannel spill;
+
+    // The ring: count entries starting at head, wrapping at the array length. The
+    // arrays grow up to capacity so that quiet accounts stay small.
+    private long[] timestamps;
+    private byte[] types;
+    private long[] amounts;
+    private long[] balances;
+    private int[] counterparties;
+    private int head;
+    private int count;
+
+    private long total;          // entries ever added; the next sequence number
+    private long firstAvailable; // entries before this were dropped
+    private long spilled;        // entries [firstAvailable, spilled) are in the spill file
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    // Keeps the newest capacity entries and drops older ones
+    public TransactionHistory(int capacity) {
+        this.capacity = checkCapacity(capacity);
+        this.spillFile = null;
+        this.spill = null;
+        allocate(Math.min(INITIAL_LENGTH, capacity));
+    }
+
+    // Keeps capacity entries in memory and moves older ones to spillFile, which is
+    // truncated first
+    public TransactionHistory(int capacity, Path spillFile) throws IOException {
+        this.capacity = checkCapacity(capacity);
+        this.spillFile = spillFile;
+        this.spill = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        allocate(Math.min(INITIAL_LENGTH, capacity));
+    }
+
+    private static int checkCapacity(int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        return capacity;
+    }
+
+    private void allocate(int length) {
+        timestamps = new long[length];
+        types = new byte[length];
+        amounts = new long[length];
+        balances = new long[length];
+        counterparties = new int[length];
+    }
+
+    // Adds an entry and returns its sequence number. A timestamp older than the
+    // previous entry's (threads racing to record) is raised to it, keeping the order.
+    public synchronized long add(long timestampNanos, byte type, long amountCents, long balanceCents,
+            int counterparty) {
+        if (count == timestamps.length) {
+            makeRoom();
+        }
+        lastTimestamp = Math.max(lastTimestamp, timestampNanos);
+        int slot = slot(count);
+        timestamps[slot] = lastTimestamp;
+        types[slot] = type;
+        amounts[slot] = amountCents;
+        balances[slot] = balanceCents;
+        counterparties[slot] = counterparty;
+        count++;
+        return total++;
+    }
+
+    private void makeRoom() {
+        if (count < capacity) {
+            grow(Math.min(capacity, count * 2));
+        } else if (spill == null) {
+            dropOldest();
+        } else {
+            try {
+                spillOldest(Math.max(1, count / 2));
+            } catch (IOException e) {
+                // Keep recording; the oldest entry and everything spilled before it
+                // are lost rather than the new entry. Later spills continue after the
+                // gap, so a record's file position stays sequence * RECORD_BYTES.
+                System.err.println("Error spilling history to " + spillFile + ": " + e.getMessage());
+                dropOldest();
+                spilled = firstAvailable;
+            }
+        }
+    }
+
+    private void dropOldest() {
+        head = slot(1);
+        count--;
+        firstAvailable = total - count;
+    }
+
+    private void grow(int length) {
+        long[] oldTimestamps = timestamps;
+        byte[] oldTypes = types;
+        long[] oldAmounts = amounts;
+        long[] oldBalances = balances;
+        int[] oldCounterparties = counterparties;
+        allocate(length);
+        for (int i = 0; i < count; i++) {
+            int from = (head + i) % oldTimestamps.length;
+            timestamps[i] = oldTimestamps[from];
+            types[i] = oldTypes[from];
+            amounts[i] = oldAmounts[from];
+            balances[i] = oldBalances[from];
+            counterparties[i] = oldCounterparties[from];
+        }
+        head = 0;
+    }
+
+    // Appends the n oldest in-memory entries to the spill file with one write
+    private void spillOldest(int n) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(n * RECORD_BYTES);
+        for (int i = 0; i < n; i++) {
+            int slot = slot(i);
+            buffer.putLong(timestamps[slot]).put(types[slot]).putLong(amounts[slot])
+                    .putLong(balances[slot]).putInt(counterparties[slot]);
+        }
+        buffer.flip();
+        long position = spilled * RECORD_BYTES;
+        while (buffer.hasRemaining()) {
+            position += spill.write(buffer, position);
+        }
+        spilled += n;
+        head = slot(n);
+        count -= n;
+    }
+
+    private int slot(long index) {
+        return (int) ((head + index) % timestamps.length);
+    }
+
+    // Sequence numbers of all entries ever added are [0, size()); the ones still
+    // available are [getFirstAvailable(), size())
+    public synchronized long size() {
+        return total;
+    }
+
+    public synchronized long getFirstAvailable() {
+        return firstAvailable;
+    }
+
+    // Entries readable from the spill file
+    public synchronized long getSpilledCount() {
+        return spilled - Math.min(spilled, firstAvailable);
+    }
+
+    public synchronized int getInMemoryCount() {
+        return count;
+    }
+
+    // The first available entry at or after timestampNanos, or size() if there is none
+    public synchronized long indexOf(long timestampNanos) throws IOException {
+        long low = getFirstAvailable();
+        long high = total;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (timestampAt(middle) < timestampNanos) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long timestampAt(long sequence) throws IOException {
+        long memoryStart = total - count;
+        if (sequence >= memoryStart) {
+            return timestamps[slot(sequence - memoryStart)];
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readSpilled(buffer, sequence * RECORD_BYTES);
+        return buffer.getLong(0);
+    }
+
+    // Visits up to limit entries in [fromSequence, toSequence) and returns the sequence
+    // number to continue from, so a page of a statement is read(next, end, pageSize, v)
+    public synchronized long read(long fromSequence, long toSequence, int limit, Visitor visitor)
+            throws IOException {
+        long sequence = Math.max(fromSequence, getFirstAvailable());
+        long end = Math.min(toSequence, total);
+        if (limit > 0 && end - sequence > limit) {
+            end = sequence + limit;
+        }
+        long memoryStart = total - count;
+        if (sequence < memoryStart && sequence < end) {
+            sequence = readSpilled(sequence, Math.min(end, memoryStart), visitor);
+        }
+        for (; sequence < end; sequence++) {
+            int slot = slot(sequence - memoryStart);
+            visitor.visit(sequence, timestamps[slot], types[slot], amounts[slot], balances[slot],
+                    counterparties[slot]);
+        }
+        return sequence;
+    }
+
+    // Visits every available entry with fromNanos <= timestamp < toNanos
+    public synchronized void range(long fromNanos, long toNanos, Visitor visitor) throws IOException {
+        read(indexOf(fromNanos), indexOf(toNanos), 0, visitor);
+    }
+
+    public synchronized void forEach(Visitor visitor) throws IOException {
+        read(firstAvailable, total, 0, visitor);
+    }
+
+    private long readSpilled(long sequence, long end, Visitor visitor) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BATCH * RECORD_BYTES);
+        while (sequence < end) {
+            int n = (int) Math.min(READ_BATCH, end - sequence);
+            buffer.clear().limit(n * RECORD_BYTES);
+            readSpilled(buffer, sequence * RECORD_BYTES);
+            buffer.flip();
+            for (int i = 0; i < n; i++) {
+                visitor.visit(sequence++, buffer.getLong(), buffer.get(), buffer.getLong(), buffer.getLong(),
+                        buffer.getInt());
+            }
+        }
+        return sequence;
+    }
+
+    private void readSpilled(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = spill.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("History spill file is truncated: " + spillFile);
+            }
+        }
+    }
+
+    // Approximate bytes used in memory by the columns
+    public synchronized long getMemoryBytes() {
+        return (long) timestamps.length * RECORD_BYTES;
+    }
+
+    // Closes and deletes the spill file, if any
+    @Override
+    public synchronized void close() throws IOException {
+        if (spill != null && spill.isOpen()) {
+            spill.close();
+            Files.deleteIfExists(spillFile);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+
+// Compact binary storage for FileProcessor.User, as a replacement for Java serialization
+// when storing many users in one file.
+//
+//   file    = magic "USRS" (4 bytes) | major version (u8) | minor version (u8) | record*
+//   record  = payload length (i32) | payload
+//   payload = flags (u8) | createdDate millis (i64, if flag 2)
+//             | username length (u16) | username UTF-8 (if flag 1) | later fields
+//
+// The length prefix frames every record, so a record can be read directly given the
+// offset returned when it was written, and a reader stops at the fields it knows and
+// skips the rest. A new minor version may only add flag bits and append fields after
+// the existing ones, so readers accept any minor version of their major version;
+// anything older readers could not skip needs a new major version. Passwords are
+// never written, matching the transient field in User.
+public class UserCodec {
+    static final int MAGIC = 0x55535253; // "USRS"
+    static final int MAJOR_VERSION = 1;
+    static final int MINOR_VERSION = 0;
+    static final int HEADER_BYTES = 6;
+
+    private static final int FLAG_USERNAME = 1;
+    private static final int FLAG_CREATED = 2;
+    private static final int MAX_RECORD_BYTES = 1 << 20;
+    private static final int MAX_USERNAME_BYTES = 0xFFFF;
+
+    static byte[] encode(FileProcessor.User user) {
+        byte[] name = user.getUsername() == null ? null : user.getUsername().getBytes(StandardCharsets.UTF_8);
+        if (name != null && name.length > MAX_USERNAME_BYTES) {
+            throw new IllegalArgumentException("Username is too long (" + name.length + " bytes)");
+        }
+        Date created = user.getCreatedDate();
+        int flags = (name != null ? FLAG_USERNAME : 0) | (created != null ? FLAG_CREATED : 0);
+        ByteBuffer payload = ByteBuffer.allocate(1 + (created != null ? 8 : 0) + (name != null ? 2 + name.length : 0));
+        payload.put((byte) flags);
+        if (created != null) {
+            payload.putLong(created.getTime());
+        }
+        if (name != null) {
+            payload.putShort((short) name.length).put(name);
+        }
+        return payload.array();
+    }
+
+    // Unknown flags and whatever follows the known fields belong to a newer minor version
+    static FileProcessor.User decode(byte[] payload, int length) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload, 0, length);
+        int flags = in.get();
+        Date created = null;
+        if ((flags & FLAG_CREATED) != 0) {
+            if (in.remaining() < 8) {
+                throw new IOException("Truncated user record");
+            }
+            created = new Date(in.getLong());
+        }
+        String username = null;
+        if ((flags & FLAG_USERNAME) != 0) {
+            if (in.remaining() < 2) {
+                throw new IOException("Truncated user record");
+            }
+            int nameLength = Short.toUnsignedInt(in.getShort());
+            if (in.remaining() < nameLength) {
+                throw new IOException("Truncated user record");
+            }
+            username = new String(payload, in.position(), nameLength, StandardCharsets.UTF_8);
+        }
+        return new FileProcessor.User(username, created);
+    }
+
+    // Appends records to a new file; write() returns the offset to pass to readAt()
+    public static class RecordWriter implements Closeable {
+        private final DataOutputStream out;
+        private long position;
+
+        public RecordWriter(Path file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeByte(MAJOR_VERSION);
+            out.writeByte(MINOR_VERSION);
+            position = HEADER_BYTES;
+        }
+
+        public long write(FileProcessor.User user) throws IOException {
+            byte[] payload = encode(user);
+            long offset = position;
+            out.writeInt(payload.length);
+            out.write(payload);
+            position += 4 + payload.length;
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    // Reads records front to back; next() returns null at the end of the file
+    public static class RecordReader implements Closeable {
+        private final DataInputStream in;
+        private byte[] buffer = new byte[256];
+
+        public RecordReader(Path file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024));
+            try {
+                checkHeader(in.readInt(), in.readUnsignedByte(), in.readUnsignedByte());
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        public FileProcessor.User next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            checkLength(length);
+            if (length > buffer.length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            return decode(buffer, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    // Random access: reads the single record that starts at the given offset
+    public static FileProcessor.User readAt(FileChannel channel, long offset) throws IOException {
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        readFully(channel, lengthBuffer, offset);
+        int length = lengthBuffer.getInt(0);
+        checkLength(length);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + 4);
+        return decode(payload.array(), length);
+    }
+
+    // Checks the file header of a channel opened for readAt()
+    public static void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(channel, header, 0);
+        checkHeader(header.getInt(0), Byte.toUnsignedInt(header.get(4)), Byte.toUnsignedInt(header.get(5)));
+    }
+
+    private static void checkHeader(int magic, int major, int minor) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not a user record file");
+        }
+        if (major != MAJOR_VERSION) {
+            throw new IOException("Unsupported user record version " + major + "." + minor);
+        }
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 1 || length > MAX_RECORD_BYTES) {
+            throw new IOException("Corrupt user record (length " + length + ")");
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("Record extends past end of file");
+            }
+        }
+    }
+
+    // Size and speed against ObjectOutputStream: java UserCodec [records]
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        FileProcessor.User[] users = new FileProcessor.User[count];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < count; i++) {
+            users[i] = new FileProcessor.User("user_" + i, new Date(now - i * 1000L));
+        }
+        Path binary = Files.createTempFile("users", ".bin");
+        Path serialized = Files.createTempFile("users", ".ser");
+        try {
+            for (int round = 1; round <= 3; round++) {
+                System.out.println("Round " + round + " (" + count + " users)");
+                benchmarkCodec(users, binary);
+                benchmarkSerialization(users, serialized);
+            }
+        } finally {
+            Files.deleteIfExists(binary);
+            Files.deleteIfExists(serialized);
+        }
+    }
+
+    private static void benchmarkCodec(FileProcessor.User[] users, Path file) throws IOException {
+        long[] offsets = new long[users.length];
+        long start = System.nanoTime();
+        try (RecordWriter writer = new RecordWriter(file)) {
+            for (int i = 0; i < users.length; i++) {
+                offsets[i] = writer.write(users[i]);
+            }
+        }
+        long written = System.nanoTime();
+        int read = 0;
+        try (RecordReader reader = new RecordReader(file)) {
+            while (reader.next() != null) {
+                read++;
+            }
+        }
+        long done = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            FileProcessor.User last = readAt(channel, offsets[offsets.length - 1]);
+            if (!last.getUsername().equals(users[users.length - 1].getUsername()) || read != users.length) {
+                throw new IllegalStateException("Round trip mismatch");
+            }
+        }
+        report("UserCodec", Files.size(file), users.length, written - start, done - written);
+    }
+
+    private static void benchmarkSerialization(FileProcessor.User[] users, Path file) throws Exception {
+        long start = System.nanoTime();
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024))) {
+            for (int i = 0; i < users.length; i++) {
+                out.writeObject(users[i]);
+                // Without reset the stream keeps every object for back-references
+                if ((i & 1023) == 1023) {
+                    out.reset();
+                }
+            }
+        }
+        long written = System.nanoTime();
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            for (int i = 0; i < users.length; i++) {
+                in.readObject();
+            }
+        }
+        long done = System.nanoTime();
+        report("ObjectOutputStream", Files.size(file), users.length, written - start, done - written);
+    }
+
+    private static void report(String name, long bytes, int count, long writeNanos, long readNanos) {
+        System.out.printf("  %-20s %10d bytes (%5.1f/record)  write %7.0f ms  read %7.0f ms%n",
+                name, bytes, (double) bytes / count, writeNanos / 1e6, readNanos / 1e6);
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Incremental word counter. Text is pushed through in arbitrary-sized pieces and a
+// word may straddle two pieces, so only the vocabulary and the current partial word
+// are held in memory. Tokens are split and lowercased exactly like
+// line.split("\\s+") + toLowerCase(), so results match FileProcessor.analyzeText.
+// Words can also be handed to a sink instead of counted, e.g. to feed a sketch.
+public class WordCounter {
+    private static final int BUFFER_CHARS = 64 * 1024;
+
+    private final Map<String, Long> counts = new HashMap<>();
+    private final StringBuilder partial = new StringBuilder();
+    private final Consumer<String> sink;
+
+    public WordCounter() {
+        this.sink = word -> counts.merge(word, 1L, Long::sum);
+    }
+
+    // Passes each lowercased word to the sink; finish() then returns an empty map
+    public WordCounter(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    // Counts every word read from the reader; the reader is not closed
+    public static Map<String, Long> count(Reader reader) throws IOException {
+        WordCounter counter = new WordCounter();
+        counter.acceptAll(reader);
+        return counter.finish();
+    }
+
+    // Feeds everything left in the reader through the tokenizer
+    public void acceptAll(Reader reader) throws IOException {
+        char[] buffer = new char[BUFFER_CHARS];
+        int n;
+        while ((n = reader.read(buffer)) != -1) {
+            accept(buffer, 0, n);
+        }
+    }
+
+    public void accept(char[] chars, int offset, int length) {
+        int end = offset + length;
+        int wordStart = -1;
+        for (int i = offset; i < end; i++) {
+            if (isSeparator(chars[i])) {
+                if (wordStart >= 0) {
+                    endWord(chars, wordStart, i);
+                    wordStart = -1;
+                } else if (partial.length() > 0) {
+                    endWord(chars, i, i);
+                }
+            } else if (wordStart < 0) {
+                wordStart = i;
+            }
+        }
+        // Word still running at the end of this piece: carry it over to the next one
+        if (wordStart >= 0) {
+            partial.append(chars, wordStart, end - wordStart);
+        }
+    }
+
+    // Flushes a trailing word and returns the counts
+    public Map<String, Long> finish() {
+        if (partial.length() > 0) {
+            add(partial.toString());
+            partial.setLength(0);
+        }
+        return counts;
+    }
+
+    private void endWord(char[] chars, int start, int end) {
+        if (partial.length() == 0) {
+            add(new String(chars, start, end - start));
+        } else {
+            partial.append(chars, start, end - start);
+            add(partial.toString());
+            partial.setLength(0);
+        }
+    }
+
+    private void add(String word) {
+        sink.accept(word.toLowerCase());
+    }
+
+    // The regex \s class: space, \t, \n, \u000B, \f, \r. Line breaks are separators
+    // too, which is what makes counting lines one at a time equivalent.
+    static boolean isSeparator(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+}